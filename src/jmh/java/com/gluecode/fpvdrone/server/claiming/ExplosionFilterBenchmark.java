@@ -0,0 +1,145 @@
+package com.gluecode.fpvdrone.server.claiming;
+
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+Compares ExplosionFilter with checking the claim of every block.
+
+legacyStringKeys is the path onExplosionEvent took when claims were a JSONObject keyed by
+"[dimension, x, z]": checkPermission built that key once for each of checkClaimed,
+checkOwner and checkCollaborator, and searched the collaborator list.
+
+Each invocation filters a synthetic explosion of 2,000 blocks centered on a chunk corner,
+so it touches four chunks. Two of them are claimed by another player.
+The blocks are shuffled, since Explosion collects them in a HashSet.
+
+Every benchmark copies the block list first, because filtering changes it.
+
+Run with gradlew jmh -PjmhArgs="ExplosionFilter -prof gc" to see the allocation rate of each path.
+* */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExplosionFilterBenchmark {
+  private static final int BLOCKS = 2000;
+  private static final ResourceLocation DIMENSION = new ResourceLocation("minecraft:overworld");
+  private static final int OWNER = 0;
+  private static final int PLAYER = 1;
+
+  private ArrayList<BlockPos> explosion;
+  private ClaimRegions claims;
+  private JSONObject legacyClaims;
+  private UUID legacyPlayer;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setup() {
+    BlockPos center = new BlockPos(16, 64, 16);
+    ArrayList<BlockPos> sphere = new ArrayList<>();
+    for (int radius = 0; sphere.size() < BLOCKS; radius++) {
+      sphere.clear();
+      for (int x = -radius; x <= radius; x++) {
+        for (int y = -radius; y <= radius; y++) {
+          for (int z = -radius; z <= radius; z++) {
+            if (x * x + y * y + z * z <= radius * radius) {
+              sphere.add(center.offset(x, y, z));
+            }
+          }
+        }
+      }
+    }
+    Collections.shuffle(sphere, new Random(0));
+    explosion = new ArrayList<>(sphere.subList(0, BLOCKS));
+
+    claims = new ClaimRegions();
+    legacyClaims = new JSONObject();
+    legacyPlayer = new UUID(0, PLAYER);
+    ClaimRecord claim = new ClaimRecord(OWNER);
+    for (ChunkPos pos : new ChunkPos[]{new ChunkPos(0, 0), new ChunkPos(1, 1)}) {
+      claims.put(pos.x, pos.z, claim);
+
+      ArrayList<String> collaborators = new ArrayList<>();
+      collaborators.add(new UUID(0, 2).toString());
+      JSONObject legacyClaim = new JSONObject();
+      legacyClaim.put("owner", new UUID(0, OWNER).toString());
+      legacyClaim.put("collaborators", collaborators);
+      legacyClaims.put(legacyKey(pos), legacyClaim);
+    }
+  }
+
+  @Benchmark
+  @SuppressWarnings("unchecked")
+  public int legacyStringKeys() {
+    ArrayList<BlockPos> list = new ArrayList<>(explosion);
+    ArrayList<BlockPos> toBlow = new ArrayList<>();
+    for (BlockPos pos : list) {
+      String entity = legacyPlayer.toString();
+      boolean hasPermission;
+      // checkClaimed:
+      if (legacyClaims.get(legacyKey(new ChunkPos(pos))) == null) {
+        hasPermission = true;
+      } else {
+        // checkOwner:
+        JSONObject ownerClaim = (JSONObject) legacyClaims.get(legacyKey(new ChunkPos(pos)));
+        String owner = ownerClaim == null ? null : (String) ownerClaim.get("owner");
+        if (owner != null && entity.equalsIgnoreCase(owner)) {
+          hasPermission = true;
+        } else {
+          // checkCollaborator:
+          JSONObject collaboratorClaim = (JSONObject) legacyClaims.get(legacyKey(new ChunkPos(pos)));
+          ArrayList<String> collaborators = collaboratorClaim == null ? null : (ArrayList<String>) collaboratorClaim.get("collaborators");
+          hasPermission = collaborators != null && collaborators.contains(entity);
+        }
+      }
+      if (hasPermission) {
+        toBlow.add(pos);
+      }
+    }
+    return toBlow.size();
+  }
+
+  @Benchmark
+  public int perBlock() {
+    ArrayList<BlockPos> list = new ArrayList<>(explosion);
+    ArrayList<BlockPos> toBlow = new ArrayList<>();
+    for (BlockPos pos : list) {
+      ClaimRecord claim = claims.get(pos.getX() >> 4, pos.getZ() >> 4);
+      if (claim == null || claim.isMember(PLAYER)) {
+        toBlow.add(pos);
+      }
+    }
+    return toBlow.size();
+  }
+
+  @Benchmark
+  public int perChunk() {
+    ArrayList<BlockPos> toBlow = new ArrayList<>(explosion);
+    ExplosionFilter.filter(toBlow, (chunkX, chunkZ) -> {
+      ClaimRecord claim = claims.get(chunkX, chunkZ);
+      return claim == null || claim.isMember(PLAYER);
+    });
+    return toBlow.size();
+  }
+
+  /*
+  The key ChunkClaim used before claims were kept per dimension.
+  Main.getDimension built the dimension name every time.
+  * */
+  private static String legacyKey(ChunkPos pos) {
+    String dimensionKey = DIMENSION.toString();
+    return "[" + dimensionKey + ", " + pos.x + ", " + pos.z + "]";
+  }
+}
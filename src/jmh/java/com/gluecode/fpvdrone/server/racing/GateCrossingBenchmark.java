@@ -0,0 +1,168 @@
+package com.gluecode.fpvdrone.server.racing;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Plane;
+import com.jme3.math.Ray;
+import com.jme3.math.Vector3f;
+import net.minecraft.util.Direction;
+import net.minecraft.util.math.BlockPos;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+Compares GateCrossing with the jME3 Ray/Plane path that checkUserPassedGate used before.
+
+Each invocation tests a batch of player movements against one 5x5 ring gate.
+Some of the movements pass through the opening, some hit the frame, and most never reach the plane,
+which is roughly what a tick with many racers looks like.
+
+Run with gradlew jmh -PjmhArgs="GateCrossing -prof gc" to see the allocation rate of each path.
+* */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GateCrossingBenchmark {
+  private static final int SEGMENTS = 1024;
+  private static final String DIMENSION = "minecraft:overworld";
+
+  private RaceGate gate;
+  private Vector3f[] prev;
+  private Vector3f[] next;
+  private Vector3f hit;
+
+  @Setup
+  public void setup() throws RaceGateException {
+    // 5x5 ring in the xy plane at z = 0:
+    HashSet<BlockPos> solid = new HashSet<>();
+    for (int x = 0; x < 5; x++) {
+      for (int y = 0; y < 5; y++) {
+        if (x == 0 || x == 4 || y == 0 || y == 4) {
+          solid.add(new BlockPos(x, y, 0));
+        }
+      }
+    }
+    gate = RaceMath.loadGate(
+    DIMENSION,
+    new BlockPos(1, 0, 0),
+    Direction.UP,
+    new BlockPos(2, 0, 0),
+    (String dimension, BlockPos pos) -> solid.contains(pos),
+    null
+    );
+    gate.crossing = new GateCrossing(gate);
+
+    Random random = new Random(0);
+    prev = new Vector3f[SEGMENTS];
+    next = new Vector3f[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      Vector3f from = new Vector3f(
+      random.nextFloat() * 7 - 1,
+      random.nextFloat() * 7 - 1,
+      random.nextFloat() * 6 - 3
+      );
+      // About one tick of fast flying:
+      Vector3f step = new Vector3f(
+      random.nextFloat() - 0.5f,
+      random.nextFloat() - 0.5f,
+      random.nextFloat() * 2 - 0.5f
+      );
+      prev[i] = from;
+      next[i] = from.add(step);
+    }
+    hit = new Vector3f();
+  }
+
+  @Benchmark
+  public int rayPlane() {
+    int passed = 0;
+    for (int i = 0; i < SEGMENTS; i++) {
+      if (legacyPassedGate(gate, prev[i], next[i], hit)) {
+        passed++;
+      }
+    }
+    return passed;
+  }
+
+  @Benchmark
+  public int gateCrossing() {
+    int passed = 0;
+    GateCrossing crossing = gate.crossing;
+    for (int i = 0; i < SEGMENTS; i++) {
+      Vector3f from = prev[i];
+      Vector3f to = next[i];
+      if (from.equals(to)) continue;
+      if (crossing.test(from.x, from.y, from.z, to.x, to.y, to.z, hit)) {
+        passed++;
+      }
+    }
+    return passed;
+  }
+
+  /*
+  The previous body of RaceNavigate.checkUserPassedGate and isGateBlock.
+  * */
+  private static boolean legacyPassedGate(RaceGate nextGate, Vector3f prevPos, Vector3f playerPos, Vector3f intersectionOut) {
+    if (playerPos.equals(prevPos)) {
+      return false;
+    }
+
+    Vector3f positiveNormal = nextGate.normal.clone();
+    if (FastMath.sign(positiveNormal.x) < 0) {
+      positiveNormal.x *= -1;
+    }
+    if (FastMath.sign(positiveNormal.y) < 0) {
+      positiveNormal.y *= -1;
+    }
+    if (FastMath.sign(positiveNormal.z) < 0) {
+      positiveNormal.z *= -1;
+    }
+
+    Vector3f travelDir = playerPos.subtract(prevPos).normalizeLocal();
+    Ray ray = new Ray(prevPos, travelDir);
+    Plane plane = new Plane(nextGate.normal, new Vector3f(nextGate.origin.getX() + positiveNormal.x * 0.5f, nextGate.origin.getY() + positiveNormal.y * 0.5f, nextGate.origin.getZ() + positiveNormal.z * 0.5f));
+    Vector3f rayHitOut = new Vector3f();
+    ray.intersectsWherePlane(plane, rayHitOut);
+    float travelDistance = playerPos.subtract(prevPos).lengthSquared();
+    float minDistanceNeeded = rayHitOut.subtract(prevPos).lengthSquared();
+    boolean gateHit = (travelDistance - minDistanceNeeded) > -(0.001f * 0.001f);
+    if (!gateHit) {
+      return false;
+    }
+
+    BlockPos crossingBlock = new BlockPos((int) FastMath.floor(rayHitOut.x), (int) FastMath.floor(rayHitOut.y), (int) FastMath.floor(rayHitOut.z));
+    boolean pass = legacyIsGateBlock(crossingBlock, nextGate);
+    intersectionOut.set(rayHitOut);
+    return pass;
+  }
+
+  private static boolean legacyIsGateBlock(BlockPos pos, RaceGate gate) {
+    int testX = pos.getX();
+    int testY = pos.getY();
+    int testZ = pos.getZ();
+    int minX = gate.origin.getX();
+    int minY = gate.origin.getY();
+    int minZ = gate.origin.getZ();
+    int maxX = gate.farthest.getX();
+    int maxY = gate.farthest.getY();
+    int maxZ = gate.farthest.getZ();
+    boolean insideBB = minX <= testX && testX <= maxX &&
+    minY <= testY && testY <= maxY &&
+    minZ <= testZ && testZ <= maxZ;
+    if (!insideBB) {
+      return false;
+    }
+
+    Vector3f crossingVector = new Vector3f(pos.getX(), pos.getY(), pos.getZ());
+    Vector3f originVector = new Vector3f(gate.origin.getX(), gate.origin.getY(), gate.origin.getZ());
+    Vector3f originToCrossing = crossingVector.subtract(originVector);
+    int row = (int) Math.floor(originToCrossing.dot(gate.up));
+    int column = (int) Math.floor(originToCrossing.dot(gate.right));
+    return gate.rowMin[row] <= column && column <= gate.rowMax[row];
+  }
+}
@@ -0,0 +1,100 @@
+package com.gluecode.fpvdrone.server;
+
+import javax.annotation.Nullable;
+import java.util.UUID;
+
+/*
+A 128 bit id, as stored in the BINARY(16) id columns.
+
+Player ids have the same bits as the player's UUID, so converting between them is free.
+Track, gate and lap ids are time ordered UUIDs. See MySQLHelper.newId.
+
+Used as a map key instead of the 32 character hex string,
+so hashing and comparing an id does not touch a string.
+toString gives the hex string that was used before, for links and logs.
+* */
+public final class CompactId implements Comparable<CompactId> {
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  public final long high;
+  public final long low;
+
+  public CompactId(long high, long low) {
+    this.high = high;
+    this.low = low;
+  }
+
+  public static @Nullable CompactId of(@Nullable UUID uuid) {
+    if (uuid == null) return null;
+    return new CompactId(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+  }
+
+  public static @Nullable CompactId fromBytes(@Nullable byte[] bytes) {
+    if (bytes == null) return null;
+    if (bytes.length != 16) {
+      throw new IllegalArgumentException("An id has 16 bytes, not " + bytes.length + ".");
+    }
+    return new CompactId(readLong(bytes, 0), readLong(bytes, 8));
+  }
+
+  public UUID toUUID() {
+    return new UUID(high, low);
+  }
+
+  public byte[] toBytes() {
+    byte[] bytes = new byte[16];
+    writeLong(bytes, 0, high);
+    writeLong(bytes, 8, low);
+    return bytes;
+  }
+
+  private static long readLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value = (value << 8) | (bytes[offset + i] & 0xFF);
+    }
+    return value;
+  }
+
+  private static void writeLong(byte[] bytes, int offset, long value) {
+    for (int i = 7; i >= 0; i--) {
+      bytes[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof CompactId)) return false;
+    CompactId other = (CompactId) o;
+    return high == other.high && low == other.low;
+  }
+
+  @Override
+  public int hashCode() {
+    return LongObjectMap.mix(high ^ Long.rotateLeft(low, 32));
+  }
+
+  /*
+  Same order as the BINARY(16) column.
+  * */
+  @Override
+  public int compareTo(CompactId other) {
+    int compare = Long.compareUnsigned(high, other.high);
+    return compare != 0 ? compare : Long.compareUnsigned(low, other.low);
+  }
+
+  /*
+  32 uppercase hex digits, like HEX(id) in SQL.
+  * */
+  @Override
+  public String toString() {
+    char[] chars = new char[32];
+    for (int i = 0; i < 16; i++) {
+      chars[i] = HEX[(int) (high >>> (60 - 4 * i)) & 0xF];
+      chars[16 + i] = HEX[(int) (low >>> (60 - 4 * i)) & 0xF];
+    }
+    return new String(chars);
+  }
+}
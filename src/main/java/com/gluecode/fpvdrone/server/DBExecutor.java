@@ -0,0 +1,217 @@
+package com.gluecode.fpvdrone.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/*
+Runs every DB call for MySQLHelper.
+
+There is one worker per pooled connection, so a worker never waits on the pool,
+and a slow database only backs up this queue instead of the common pool.
+
+Work is queued in bounded lanes by priority. Workers always take from the highest non-empty lane.
+When a lane is full, the rejection policy decides what happens to new work.
+* */
+public class DBExecutor {
+  public enum Priority {
+    HIGH, // Writes that players are waiting on, like laps.
+    NORMAL,
+    LOW // Analytics and large scans.
+  }
+
+  public enum RejectionPolicy {
+    FAIL, // The future completes exceptionally.
+    CALLER_RUNS // The submitting thread runs the work itself.
+  }
+
+  private static class Task<T> {
+    final Supplier<T> work;
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    final long queuedAt = System.nanoTime();
+
+    Task(Supplier<T> work) {
+      this.work = work;
+    }
+
+    void run() {
+      try {
+        future.complete(work.get());
+      } catch (CompletionException e) {
+        future.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+      } catch (Throwable e) {
+        future.completeExceptionally(e);
+      }
+    }
+  }
+
+  private final int laneCapacity;
+  private final RejectionPolicy rejectionPolicy;
+  private final ArrayDeque<Task<?>>[] lanes;
+  private final Thread[] workers;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private boolean shutdown = false;
+
+  // Metrics, guarded by lock:
+  private long taken = 0;
+  private long totalWaitNanos = 0;
+  private long maxWaitNanos = 0;
+  private long rejected = 0;
+
+  @SuppressWarnings("unchecked")
+  public DBExecutor(int threads, int laneCapacity, RejectionPolicy rejectionPolicy) {
+    this.laneCapacity = laneCapacity;
+    this.rejectionPolicy = rejectionPolicy;
+    this.lanes = new ArrayDeque[Priority.values().length];
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new ArrayDeque<>();
+    }
+    this.workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread(this::work, "MySQL-" + (i + 1));
+      worker.setDaemon(true);
+      workers[i] = worker;
+      worker.start();
+    }
+  }
+
+  public <T> CompletableFuture<T> submit(Priority priority, Supplier<T> work) {
+    Task<T> task = new Task<>(work);
+    lock.lock();
+    try {
+      ArrayDeque<Task<?>> lane = lanes[priority.ordinal()];
+      if (!shutdown && lane.size() < laneCapacity) {
+        lane.addLast(task);
+        notEmpty.signal();
+        return task.future;
+      }
+      rejected++;
+    } finally {
+      lock.unlock();
+    }
+
+    if (rejectionPolicy == RejectionPolicy.CALLER_RUNS && !shutdown) {
+      task.run();
+    } else {
+      task.future.completeExceptionally(new Exception("The database is busy. Please try again."));
+    }
+    return task.future;
+  }
+
+  /*
+  Stops taking new work. Queued work is still run.
+  * */
+  public void shutdown(long timeout, TimeUnit unit) {
+    lock.lock();
+    try {
+      shutdown = true;
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (Thread worker : workers) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) break;
+      try {
+        worker.join(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  public int getQueueDepth() {
+    lock.lock();
+    try {
+      int depth = 0;
+      for (ArrayDeque<Task<?>> lane : lanes) {
+        depth += lane.size();
+      }
+      return depth;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getQueueDepth(Priority priority) {
+    lock.lock();
+    try {
+      return lanes[priority.ordinal()].size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+  Average time spent in the queue before a worker took the task.
+  * */
+  public double getAverageWaitMillis() {
+    lock.lock();
+    try {
+      return taken == 0 ? 0 : totalWaitNanos / (double) taken / 1000000.0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public double getMaxWaitMillis() {
+    lock.lock();
+    try {
+      return maxWaitNanos / 1000000.0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getRejectedCount() {
+    lock.lock();
+    try {
+      return rejected;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public String describe() {
+    return "queued: " + getQueueDepth(Priority.HIGH) + " high, " +
+    getQueueDepth(Priority.NORMAL) + " normal, " +
+    getQueueDepth(Priority.LOW) + " low\n" +
+    String.format("wait: %.1f ms avg, %.1f ms max\n", getAverageWaitMillis(), getMaxWaitMillis()) +
+    "rejected: " + getRejectedCount();
+  }
+
+  private void work() {
+    while (true) {
+      Task<?> task;
+      lock.lock();
+      try {
+        while ((task = poll()) == null) {
+          if (shutdown) return;
+          notEmpty.awaitUninterruptibly();
+        }
+        long wait = System.nanoTime() - task.queuedAt;
+        taken++;
+        totalWaitNanos += wait;
+        maxWaitNanos = Math.max(maxWaitNanos, wait);
+      } finally {
+        lock.unlock();
+      }
+      task.run();
+    }
+  }
+
+  private Task<?> poll() {
+    for (ArrayDeque<Task<?>> lane : lanes) {
+      Task<?> task = lane.pollFirst();
+      if (task != null) return task;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,92 @@
+package com.gluecode.fpvdrone.server;
+
+import net.minecraft.util.RegistryKey;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.registry.Registry;
+import net.minecraft.world.World;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+Gives every dimension a small int id the first time it is seen.
+
+Ids are only meaningful while the server runs. The DB and the claim files keep the name.
+Hot paths compare ids, and name() always returns the same String instance for a dimension,
+so comparing names that came from here stops at the identity check.
+* */
+public class DimensionRegistry {
+  private static final ConcurrentHashMap<RegistryKey<World>, Integer> keyIds = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Integer> nameIds = new ConcurrentHashMap<>();
+
+  // id -> name. Replaced, never changed, so reading it needs no lock.
+  private static volatile String[] names = new String[0];
+  // id -> key, or null until it is needed.
+  private static final ArrayList<RegistryKey<World>> keys = new ArrayList<>();
+
+  public static int id(RegistryKey<World> key) {
+    Integer id = keyIds.get(key);
+    if (id != null) return id;
+    synchronized (DimensionRegistry.class) {
+      id = register(key.location().toString());
+      if (keys.get(id) == null) {
+        keys.set(id, key);
+      }
+      keyIds.put(key, id);
+      return id;
+    }
+  }
+
+  public static int id(String name) {
+    Integer id = nameIds.get(name);
+    if (id != null) return id;
+    synchronized (DimensionRegistry.class) {
+      return register(name);
+    }
+  }
+
+  public static String name(int id) {
+    return names[id];
+  }
+
+  public static String name(RegistryKey<World> key) {
+    return name(id(key));
+  }
+
+  public static synchronized RegistryKey<World> key(int id) {
+    RegistryKey<World> key = keys.get(id);
+    if (key == null) {
+      key = RegistryKey.create(Registry.DIMENSION_REGISTRY, new ResourceLocation(names[id]));
+      keys.set(id, key);
+    }
+    return key;
+  }
+
+  public static RegistryKey<World> key(String name) {
+    return key(id(name));
+  }
+
+  /*
+  Returns the shared instance of the name.
+  * */
+  public static String intern(String name) {
+    return name(id(name));
+  }
+
+  public static int size() {
+    return names.length;
+  }
+
+  private static int register(String name) {
+    Integer id = nameIds.get(name);
+    if (id != null) return id;
+    id = names.length;
+    String[] grown = Arrays.copyOf(names, id + 1);
+    grown[id] = name;
+    names = grown;
+    keys.add(null);
+    nameIds.put(name, id);
+    return id;
+  }
+}
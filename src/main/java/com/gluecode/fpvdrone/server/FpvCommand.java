@@ -1,5 +1,8 @@
 package com.gluecode.fpvdrone.server;
 
+import com.gluecode.fpvdrone.server.claiming.ChunkClaim;
+import com.gluecode.fpvdrone.server.claiming.ClaimJournal;
+import com.gluecode.fpvdrone.server.racing.RaceGateIndex;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
 import com.mojang.brigadier.context.CommandContext;
@@ -62,6 +65,12 @@ public class FpvCommand {
       return fpv_spectate(context, EntityArgument.getEntity(context, "target"), context.getSource().getPlayerOrException());
     })));
 
+    // fpv db command shows the load on the database queue and what the track index holds:
+    fpv.then(Commands.literal("db").requires((source) -> source.hasPermission(2)).executes(FpvCommand::fpv_db));
+
+    // fpv claims command shows how long claim snapshots take to write:
+    fpv.then(Commands.literal("claims").requires((source) -> source.hasPermission(2)).executes(FpvCommand::fpv_claims));
+
     dispatcher.register(fpv);
   }
 
@@ -70,6 +79,16 @@ public class FpvCommand {
     return 1;
   }
 
+  private static int fpv_db(CommandContext<CommandSource> context) {
+    context.getSource().sendSuccess(new StringTextComponent(MySQLHelper.describeQueue() + "\n" + RaceGateIndex.describe()), false);
+    return 1;
+  }
+
+  private static int fpv_claims(CommandContext<CommandSource> context) {
+    context.getSource().sendSuccess(new StringTextComponent(ChunkClaim.describe() + "\n" + ClaimJournal.describe()), false);
+    return 1;
+  }
+
   private static int fpv_gamemode(CommandContext<CommandSource> context, GameType gametype) throws CommandSyntaxException {
     return setGameMode(context, Collections.singleton(context.getSource().getPlayerOrException()), gametype);
   }
@@ -0,0 +1,193 @@
+package com.gluecode.fpvdrone.server;
+
+/*
+Open addressing hash map from a primitive long key to an object.
+
+Used for hot lookups keyed by packed block or chunk coordinates so that
+a probe does not box the key or allocate.
+
+Null values are not allowed because a null value marks an empty slot.
+Not thread safe.
+* */
+public class LongObjectMap<V> {
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private Object[] values;
+  private int mask;
+  private int size;
+  private int resizeAt;
+
+  public LongObjectMap() {
+    this(MIN_CAPACITY);
+  }
+
+  public LongObjectMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  public static int mix(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int slot = mix(key) & mask;
+    Object value;
+    while ((value = values[slot]) != null) {
+      if (keys[slot] == key) {
+        return (V) value;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return null;
+  }
+
+  public boolean containsKey(long key) {
+    return get(key) != null;
+  }
+
+  /*
+  Returns the previous value, or null if there was none.
+  * */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) {
+      throw new IllegalArgumentException("LongObjectMap does not accept null values.");
+    }
+    int slot = mix(key) & mask;
+    Object existing;
+    while ((existing = values[slot]) != null) {
+      if (keys[slot] == key) {
+        values[slot] = value;
+        return (V) existing;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    size++;
+    if (size >= resizeAt) {
+      rehash(values.length << 1);
+    }
+    return null;
+  }
+
+  /*
+  Returns the removed value, or null if there was none.
+  * */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int slot = mix(key) & mask;
+    Object existing;
+    while ((existing = values[slot]) != null) {
+      if (keys[slot] == key) {
+        shiftKeys(slot);
+        size--;
+        return (V) existing;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return null;
+  }
+
+  public void clear() {
+    allocate(MIN_CAPACITY);
+    size = 0;
+  }
+
+  /*
+  Iteration goes over raw slots:
+
+    for (int i = 0; i < map.capacity(); i++) {
+      V value = map.valueAt(i);
+      if (value == null) continue;
+      long key = map.keyAt(i);
+    }
+  * */
+  public int capacity() {
+    return values.length;
+  }
+
+  public long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  @SuppressWarnings("unchecked")
+  public V valueAt(int slot) {
+    return (V) values[slot];
+  }
+
+  public LongObjectMap<V> copy() {
+    LongObjectMap<V> copy = new LongObjectMap<>();
+    copy.keys = keys.clone();
+    copy.values = values.clone();
+    copy.mask = mask;
+    copy.size = size;
+    copy.resizeAt = resizeAt;
+    return copy;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+    resizeAt = capacity / 2;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldValues[i] == null) continue;
+      int slot = mix(oldKeys[i]) & mask;
+      while (values[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = oldKeys[i];
+      values[slot] = oldValues[i];
+    }
+  }
+
+  /*
+  Backward shift deletion so that lookups never need tombstones.
+  * */
+  private void shiftKeys(int pos) {
+    int last;
+    int slot;
+    long current;
+    while (true) {
+      last = pos;
+      pos = (pos + 1) & mask;
+      while (true) {
+        if (values[pos] == null) {
+          keys[last] = 0;
+          values[last] = null;
+          return;
+        }
+        current = keys[pos];
+        slot = mix(current) & mask;
+        if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) {
+          break;
+        }
+        pos = (pos + 1) & mask;
+      }
+      keys[last] = current;
+      values[last] = values[pos];
+    }
+  }
+}
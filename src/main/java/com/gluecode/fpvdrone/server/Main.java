@@ -5,13 +5,13 @@ import com.gluecode.fpvdrone.server.claiming.ChunkClaim;
 import com.gluecode.fpvdrone.server.claiming.ChunkCommand;
 import com.gluecode.fpvdrone.server.racing.RaceBuild;
 import com.gluecode.fpvdrone.server.racing.RaceCommand;
+import com.gluecode.fpvdrone.server.racing.RaceLapWriter;
 import com.gluecode.fpvdrone.server.racing.RaceNavigate;
 import com.mojang.authlib.GameProfile;
 import net.minecraft.entity.Entity;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.entity.player.ServerPlayerEntity;
 import net.minecraft.server.MinecraftServer;
-import net.minecraft.util.RegistryKey;
 import net.minecraft.util.text.*;
 import net.minecraft.world.World;
 import net.minecraftforge.api.distmarker.Dist;
@@ -24,23 +24,17 @@ import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.event.server.FMLServerStartingEvent;
 import net.minecraftforge.fml.event.server.FMLServerStoppedEvent;
-import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.asynchttpclient.AsyncHttpClient;
 import org.asynchttpclient.Response;
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 
 import javax.annotation.Nullable;
-import java.io.InputStream;
-import java.io.StringWriter;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static com.ea.async.Async.await;
 import static org.asynchttpclient.Dsl.*;
@@ -52,6 +46,7 @@ public class Main {
 
   public static boolean isUnitTest = false;
   public static AsyncHttpClient asyncHttpClient;
+  public static PlayerNameResolver playerNames;
   public static String version = "3.0.0"; // To be set by RaceDatabase.load
   public static MinecraftServer server;
   public static HashMap<String, Boolean> infoAuto = new HashMap<>();
@@ -91,6 +86,11 @@ public class Main {
   
   public static void loadHttp() {
     asyncHttpClient = asyncHttpClient();
+    playerNames = new PlayerNameResolver(asyncHttpClient, PlayerNameResolver.SESSION_SERVER, 10000, (uuid) -> {
+      if (server == null) return null;
+      GameProfile gameProfile = server.getProfileCache().get(uuid);
+      return gameProfile == null ? null : gameProfile.getName();
+    });
   }
 
   @OnlyIn(Dist.DEDICATED_SERVER)
@@ -110,6 +110,8 @@ public class Main {
   @OnlyIn(Dist.DEDICATED_SERVER)
   @SubscribeEvent
   public static void onServerStop(FMLServerStoppedEvent event) {
+    ChunkClaim.close();
+    RaceLapWriter.drain(10, TimeUnit.SECONDS);
     MySQLHelper.close();
     try {
       Main.LOGGER.info("Closing AsyncHttpClient...");
@@ -132,8 +134,9 @@ public class Main {
     Runtime.getRuntime().totalMemory());
 
     PlayerEntity player = event.getPlayer();
-    String name = getPlayerNameFromUuid(player.getUUID().toString());
-    sendDiscord(":man_technologist: `" + name + "` logged in.", Main.discordLogins);
+    resolvePlayerName(player.getUUID().toString()).thenAccept((name) -> {
+      sendDiscord(":man_technologist: `" + name + "` logged in.", Main.discordLogins);
+    });
   }
 
 //  @SubscribeEvent
@@ -156,47 +159,28 @@ public class Main {
     server.halt(true);
   }
 
-  public static boolean isArmed(String userId) {
+  public static boolean isArmed(CompactId userId) {
     Boolean armed = com.gluecode.fpvdrone.Main.entityArmStates.get(RaceBuild.getUUID(userId));
     return armed != null && armed;
   }
 
   /*
-  * Todo: Make async.
+  * Never blocks. Returns a placeholder while the name is looked up. See PlayerNameResolver.
   * String uuid should have dashes
   * */
   public static String getPlayerNameFromUuid(String dashedUUID) {
     if (Main.isUnitTest) return null;
+    return playerNames.getNameOrPlaceholder(UUID.fromString(dashedUUID));
+  }
 
-    String name = null;
-    GameProfile gameProfile = server.getProfileCache().get(UUID.fromString(dashedUUID));
-    if (gameProfile != null) {
-      name = gameProfile.getName();
-    } else {
-      try {
-        // todo: update API:
-        URL url = new URL("https://api.mojang.com/user/profiles/" + dashedUUID.replaceAll("-", "") + "/names");
-        InputStream stream = url.openStream();
-        try {
-          StringWriter writer = new StringWriter();
-          IOUtils.copy(stream, writer, StandardCharsets.UTF_8);
-          String response = writer.toString();
-          JSONArray nameList = (JSONArray) JSONValue.parse(response);
-          JSONObject nameEntry = (JSONObject) nameList.get(nameList.size() - 1);
-          name = (String) nameEntry.get("name");
-        } finally {
-          stream.close();
-        }
-      } catch (Exception e) {
-        Main.LOGGER.error(e);
-      }
-    }
-
-    if (name == null) {
-      return "";
-    } else {
-      return name;
-    }
+  /*
+  * For messages that can wait for the name, like Discord.
+  * String uuid should have dashes
+  * */
+  public static CompletableFuture<String> resolvePlayerName(String dashedUUID) {
+    if (Main.isUnitTest) return CompletableFuture.completedFuture(null);
+    UUID uuid = UUID.fromString(dashedUUID);
+    return playerNames.resolve(uuid).thenApply((name) -> name.isEmpty() ? PlayerNameResolver.placeholder(uuid) : name);
   }
 
   public static String getPlayerUuidFromName(String name) {
@@ -250,10 +234,16 @@ public class Main {
     return CompletableFuture.completedFuture(null);
   }
 
+  /*
+  Always the same String instance for a dimension. See DimensionRegistry.
+  * */
   public static String getDimension(@Nullable World world) {
     if (world == null) return null;
-    RegistryKey<World> dimension = world.dimension();
-    return dimension.location().toString();
+    return DimensionRegistry.name(world.dimension());
+  }
+
+  public static int getDimensionId(World world) {
+    return DimensionRegistry.id(world.dimension());
   }
 
   public static void sendInfoMessage(@Nullable Entity entity, String message) {
@@ -10,8 +10,11 @@ import org.json.simple.JSONObject;
 
 import javax.annotation.Nullable;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Properties;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -30,6 +33,9 @@ public class MySQLHelper {
   private static Connection connection;
 
   private static ComboPooledDataSource pool;
+  private static DBExecutor executor;
+  private static int DB_QUEUE_SIZE = 256;
+  private static DBExecutor.RejectionPolicy DB_REJECTION = DBExecutor.RejectionPolicy.FAIL;
 
   public static int nCalls = 0;
 
@@ -42,6 +48,15 @@ public class MySQLHelper {
       DB_USERNAME = dotenv.get("DB_USERNAME");
       DB_PASSWORD = dotenv.get("DB_PASSWORD");
       DB_SCHEMA = dotenv.get("DB_SCHEMA");
+      // Optional:
+      String queueSize = dotenv.get("DB_QUEUE_SIZE");
+      if (queueSize != null) {
+        DB_QUEUE_SIZE = Integer.parseInt(queueSize);
+      }
+      String rejection = dotenv.get("DB_REJECTION");
+      if (rejection != null) {
+        DB_REJECTION = DBExecutor.RejectionPolicy.valueOf(rejection.toUpperCase());
+      }
 
       Main.LOGGER.info("DB_HOST: " + DB_HOST);
       Main.LOGGER.info("DB_USERNAME: " + DB_USERNAME);
@@ -72,6 +87,12 @@ public class MySQLHelper {
 //      }
 //    }
 
+    if (executor != null) {
+      Main.LOGGER.info("Draining MySQL queue...");
+      executor.shutdown(10, TimeUnit.SECONDS);
+      executor = null;
+    }
+
     if (pool != null) {
       try {
         Main.LOGGER.info("Closing MySQL pool...");
@@ -107,6 +128,9 @@ public class MySQLHelper {
       pool.setMaxPoolSize(5);
 
 // The DataSource cpds is now a fully configured and usable pooled DataSource
+
+      // One worker per connection:
+      executor = new DBExecutor(pool.getMaxPoolSize(), DB_QUEUE_SIZE, DB_REJECTION);
       return true;
     } catch (Exception e) {
       Main.LOGGER.error(e.getMessage());
@@ -131,6 +155,11 @@ public class MySQLHelper {
 //    return null;
 //  }
 
+  public static String describeQueue() {
+    if (executor == null) return "The database is not loaded.";
+    return executor.describe();
+  }
+
   public static CompletableFuture<Boolean> checkTableExists(String tableName) {
     String sql = String.format("SELECT * FROM information_schema.TABLES " +
     "WHERE TABLE_SCHEMA = \"%s\" " +
@@ -144,18 +173,23 @@ public class MySQLHelper {
   }
 
   public static CompletableFuture<JSONArray> prepareAndExecute(String sql, @Nullable Preparer setter) throws Exception {
+    return prepareAndExecute(sql, setter, DBExecutor.Priority.NORMAL);
+  }
+
+  /*
+  The connection is borrowed by the DB worker, not by the calling thread.
+  * */
+  public static CompletableFuture<JSONArray> prepareAndExecute(String sql, @Nullable Preparer setter, DBExecutor.Priority priority) throws Exception {
     nCalls++;
-    Connection connection = null;
-    try {
-      connection = pool.getConnection();
-      PreparedStatement statement = connection.prepareStatement(sql);
-      if (setter != null) {
-        setter.accept(statement);
-      }
-      if (DB_HOST.equals("localhost")) {
-        Main.LOGGER.info(statement);
-      }
-      JSONArray rows = await(CompletableFuture.supplyAsync(() -> {
+    return executor.submit(priority, () -> {
+      try (Connection connection = pool.getConnection()) {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        if (setter != null) {
+          setter.accept(statement);
+        }
+        if (DB_HOST.equals("localhost")) {
+          Main.LOGGER.info(statement);
+        }
         JSONArray array = null;
         try {
           if (statement.execute()) {
@@ -172,20 +206,140 @@ public class MySQLHelper {
           Main.LOGGER.error(e.getMessage());
         }
         return array;
-      }));
-      return completedFuture(rows);
-    } catch (SQLException e) {
-      Main.LOGGER.error(e.getMessage());
-    } finally {
-      if (connection != null) {
+      } catch (SQLException e) {
+        Main.LOGGER.error(e.getMessage());
+        throw new CompletionException(new Exception("SQL query failed."));
+      }
+    });
+  }
+
+  /*
+  Runs a SELECT and maps every row straight into an object.
+  The columns should be listed in the sql so that mapper can read them by index.
+  * */
+  public static <T> CompletableFuture<ArrayList<T>> query(String sql, @Nullable Preparer setter, RowMapper<T> mapper) throws Exception {
+    return query(sql, setter, mapper, DBExecutor.Priority.NORMAL);
+  }
+
+  public static <T> CompletableFuture<ArrayList<T>> query(String sql, @Nullable Preparer setter, RowMapper<T> mapper, DBExecutor.Priority priority) throws Exception {
+    ArrayList<T> rows = new ArrayList<>();
+    await(select(sql, setter, 0, priority, (result) -> {
+      rows.add(mapper.map(result));
+      return null;
+    }));
+    return completedFuture(rows);
+  }
+
+  /*
+  Same as query, but the rows are streamed from the server and handed to consumer one at a time
+  instead of being collected. Use this for large result sets.
+  consumer runs on the DB thread while the connection is held.
+  Completes with the number of rows.
+  These run in the LOW priority lane.
+  * */
+  public static <T> CompletableFuture<Integer> queryEach(String sql, @Nullable Preparer setter, RowMapper<T> mapper, Consumer<T> consumer) throws Exception {
+    // Integer.MIN_VALUE makes Connector/J stream rows instead of reading them all into memory.
+    return select(sql, setter, Integer.MIN_VALUE, DBExecutor.Priority.LOW, (result) -> {
+      consumer.accept(mapper.map(result));
+      return null;
+    });
+  }
+
+  private static CompletableFuture<Integer> select(String sql, @Nullable Preparer setter, int fetchSize, DBExecutor.Priority priority, RowMapper<Void> handler) {
+    nCalls++;
+    return executor.submit(priority, () -> {
+      int count = 0;
+      try (
+        Connection connection = pool.getConnection();
+        PreparedStatement statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
+      ) {
+        if (setter != null) {
+          setter.accept(statement);
+        }
+        if (fetchSize != 0) {
+          statement.setFetchSize(fetchSize);
+        }
+        if (DB_HOST.equals("localhost")) {
+          Main.LOGGER.info(statement);
+        }
+        try (ResultSet result = statement.executeQuery()) {
+          while (result.next()) {
+            handler.map(result);
+            count++;
+          }
+        }
+      } catch (SQLException e) {
+        Main.LOGGER.error(e.getMessage());
+        throw new CompletionException(new Exception("SQL query failed."));
+      }
+      return count;
+    });
+  }
+
+  public static <T> CompletableFuture<T> withTransaction(Transaction<T> work) {
+    return withTransaction(work, DBExecutor.Priority.NORMAL);
+  }
+
+  /*
+  Runs every statement of work on one pooled connection and commits them together.
+  If work throws, nothing is committed.
+  Counts as one call, since the statements are not awaited one by one.
+  * */
+  public static <T> CompletableFuture<T> withTransaction(Transaction<T> work, DBExecutor.Priority priority) {
+    nCalls++;
+    return executor.submit(priority, () -> {
+      try (Connection connection = pool.getConnection()) {
+        connection.setAutoCommit(false);
         try {
-          connection.close();
-        } catch (SQLException e2) {
-          Main.LOGGER.error(e2.getMessage());
+          T result = work.run(connection);
+          connection.commit();
+          return result;
+        } catch (SQLException | RuntimeException e) {
+          connection.rollback();
+          throw e;
+        } finally {
+          // The connection goes back to the pool.
+          connection.setAutoCommit(true);
         }
+      } catch (SQLException e) {
+        Main.LOGGER.error(e.getMessage());
+        throw new CompletionException(new Exception("SQL transaction failed."));
       }
+    });
+  }
+
+  /*
+  Runs a CREATE, UPDATE or INSERT inside a Transaction.
+  Returns the number of rows changed.
+  * */
+  public static int execute(Connection connection, String sql, @Nullable Preparer setter) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement(sql)) {
+      if (setter != null) {
+        setter.accept(statement);
+      }
+      if (DB_HOST.equals("localhost")) {
+        Main.LOGGER.info(statement);
+      }
+      return statement.executeUpdate();
+    }
+  }
+
+  /*
+  Reads a BINARY(16) id column.
+  * */
+  public static @Nullable CompactId getId(ResultSet result, int column) throws SQLException {
+    return CompactId.fromBytes(result.getBytes(column));
+  }
+
+  /*
+  Binds an id to a BINARY(16) column, so the SQL uses ? instead of UNHEX(?).
+  * */
+  public static void setId(PreparedStatement statement, int column, @Nullable CompactId id) throws SQLException {
+    if (id == null) {
+      statement.setNull(column, Types.BINARY);
+    } else {
+      statement.setBytes(column, id.toBytes());
     }
-    throw new Exception("SQL query failed.");
   }
 
 //  public static @Nullable
@@ -318,8 +472,8 @@ public class MySQLHelper {
     return json;
   }
 
-  public static String newId() {
-    return UuidCreator.getTimeOrdered().toString().replaceAll("-", "").toUpperCase();
+  public static CompactId newId() {
+    return CompactId.of(UuidCreator.getTimeOrdered());
   }
 
   /*
@@ -0,0 +1,211 @@
+package com.gluecode.fpvdrone.server;
+
+import org.asynchttpclient.AsyncHttpClient;
+import org.asynchttpclient.Response;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/*
+Looks up player names by UUID without blocking the caller.
+
+Names come from the server's profile cache when the player has been seen,
+otherwise from the Mojang session server over AsyncHttpClient.
+
+Results are kept in a bounded LRU cache. Names expire after NAME_TTL_MILLIS.
+Unknown players and failed lookups are cached as "" for MISSING_TTL_MILLIS,
+so a broken profile is not requested again on every chunk entry.
+Concurrent lookups of the same UUID share one request.
+
+Futures complete on the HTTP client's threads. Callers that touch the world must hop back
+to the server thread, or use getNameOrPlaceholder instead.
+* */
+public class PlayerNameResolver {
+  public static final String SESSION_SERVER = "https://sessionserver.mojang.com/session/minecraft/profile/";
+  private static final long NAME_TTL_MILLIS = 6 * 60 * 60 * 1000;
+  private static final long MISSING_TTL_MILLIS = 5 * 60 * 1000;
+
+  private static class Entry {
+    final String name; // "" if the player could not be found
+    final long expiresAt;
+
+    Entry(String name, long expiresAt) {
+      this.name = name;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final AsyncHttpClient client;
+  private final String baseUrl;
+  private final Function<UUID, String> localLookup;
+
+  // Guards cache, inFlight and the metrics below:
+  private final Object lock = new Object();
+  private final LinkedHashMap<UUID, Entry> cache;
+  private final HashMap<UUID, CompletableFuture<String>> inFlight = new HashMap<>();
+  private long hits = 0;
+  private long coalesced = 0;
+  private long requests = 0;
+  private long failures = 0;
+
+  /*
+  localLookup returns a name without blocking, or null if it does not know the player.
+  * */
+  public PlayerNameResolver(AsyncHttpClient client, String baseUrl, int maxSize, Function<UUID, String> localLookup) {
+    this.client = client;
+    this.baseUrl = baseUrl;
+    this.localLookup = localLookup;
+    // Access order, so the eldest entry is the least recently used.
+    this.cache = new LinkedHashMap<UUID, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /*
+  Completes with the name, or "" if it could not be found.
+  * */
+  public CompletableFuture<String> resolve(UUID uuid) {
+    CompletableFuture<String> future;
+    synchronized (lock) {
+      String cached = getCached(uuid);
+      if (cached != null) {
+        hits++;
+        return CompletableFuture.completedFuture(cached);
+      }
+      future = inFlight.get(uuid);
+      if (future != null) {
+        coalesced++;
+        return future;
+      }
+      future = new CompletableFuture<>();
+      inFlight.put(uuid, future);
+    }
+
+    String local = localLookup.apply(uuid);
+    if (local != null) {
+      complete(uuid, future, local, NAME_TTL_MILLIS);
+    } else {
+      request(uuid, future);
+    }
+    return future;
+  }
+
+  /*
+  Resolves many players at once. Players that are cached or already being looked up
+  do not cause another request.
+  * */
+  public CompletableFuture<HashMap<UUID, String>> resolveAll(Collection<UUID> uuids) {
+    ArrayList<UUID> keys = new ArrayList<>(uuids);
+    ArrayList<CompletableFuture<String>> futures = new ArrayList<>(keys.size());
+    for (UUID uuid : keys) {
+      futures.add(resolve(uuid));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply((ignored) -> {
+      HashMap<UUID, String> names = new HashMap<>();
+      for (int i = 0; i < keys.size(); i++) {
+        names.put(keys.get(i), futures.get(i).join());
+      }
+      return names;
+    });
+  }
+
+  /*
+  Returns the name if it is known right now. Otherwise the lookup is started
+  and a short form of the UUID is returned, so the caller never waits.
+  * */
+  public String getNameOrPlaceholder(UUID uuid) {
+    CompletableFuture<String> future = resolve(uuid);
+    String name = future.getNow(null);
+    if (name == null || name.isEmpty()) {
+      return placeholder(uuid);
+    }
+    return name;
+  }
+
+  public static String placeholder(UUID uuid) {
+    return uuid.toString().substring(0, 8);
+  }
+
+  public String describe() {
+    synchronized (lock) {
+      return "names: " + cache.size() + " cached, " + hits + " hits, " + coalesced + " coalesced, " +
+      requests + " requests, " + failures + " failures";
+    }
+  }
+
+  private @Nullable String getCached(UUID uuid) {
+    Entry entry = cache.get(uuid);
+    if (entry == null) return null;
+    if (entry.expiresAt <= System.currentTimeMillis()) {
+      cache.remove(uuid);
+      return null;
+    }
+    return entry.name;
+  }
+
+  private void request(UUID uuid, CompletableFuture<String> future) {
+    synchronized (lock) {
+      requests++;
+    }
+    String url = baseUrl + uuid.toString().replace("-", "");
+    try {
+      client.prepareGet(url).execute().toCompletableFuture().whenComplete((response, e) -> {
+        if (e != null) {
+          fail(uuid, future, e.toString());
+        } else {
+          handle(uuid, future, response);
+        }
+      });
+    } catch (Exception e) {
+      fail(uuid, future, e.toString());
+    }
+  }
+
+  private void handle(UUID uuid, CompletableFuture<String> future, Response response) {
+    int status = response.getStatusCode();
+    if (status == 204 || status == 404) {
+      // Mojang does not know this UUID.
+      complete(uuid, future, "", MISSING_TTL_MILLIS);
+      return;
+    }
+    if (status != 200) {
+      fail(uuid, future, "HTTP " + status);
+      return;
+    }
+    Object json = JSONValue.parse(response.getResponseBody());
+    Object name = json instanceof JSONObject ? ((JSONObject) json).get("name") : null;
+    if (!(name instanceof String)) {
+      fail(uuid, future, "Unexpected profile: " + response.getResponseBody());
+      return;
+    }
+    complete(uuid, future, (String) name, NAME_TTL_MILLIS);
+  }
+
+  private void fail(UUID uuid, CompletableFuture<String> future, String reason) {
+    Main.LOGGER.error("Unable to look up the name of " + uuid + ": " + reason);
+    synchronized (lock) {
+      failures++;
+    }
+    complete(uuid, future, "", MISSING_TTL_MILLIS);
+  }
+
+  private void complete(UUID uuid, CompletableFuture<String> future, String name, long ttlMillis) {
+    synchronized (lock) {
+      cache.put(uuid, new Entry(name, System.currentTimeMillis() + ttlMillis));
+      inFlight.remove(uuid);
+    }
+    future.complete(name);
+  }
+}
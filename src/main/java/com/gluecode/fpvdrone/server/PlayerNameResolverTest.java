@@ -0,0 +1,162 @@
+package com.gluecode.fpvdrone.server;
+
+import com.sun.net.httpserver.HttpServer;
+import org.asynchttpclient.AsyncHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.asynchttpclient.Dsl.asyncHttpClient;
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+Runs PlayerNameResolver against a local stub of the session server.
+* */
+class PlayerNameResolverTest {
+  private static final UUID ALICE = UUID.fromString("00000000-0000-0000-0000-000000000001");
+  private static final UUID BOB = UUID.fromString("00000000-0000-0000-0000-000000000002");
+  private static final UUID CAROL = UUID.fromString("00000000-0000-0000-0000-000000000003");
+  private static final UUID MISSING = UUID.fromString("00000000-0000-0000-0000-0000000000ff");
+
+  private HttpServer stub;
+  private AsyncHttpClient client;
+  private String baseUrl;
+  // undashed uuid -> requests
+  private final ConcurrentHashMap<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+  private final HashMap<String, String> names = new HashMap<>();
+  // Holds every response until released, to test coalescing.
+  private volatile CountDownLatch release = new CountDownLatch(0);
+
+  @BeforeEach
+  void startStub() throws Exception {
+    names.put(undashed(ALICE), "alice");
+    names.put(undashed(BOB), "bob");
+    names.put(undashed(CAROL), "carol");
+
+    stub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    stub.createContext("/profile/", (exchange) -> {
+      String id = exchange.getRequestURI().getPath().substring("/profile/".length());
+      requests.computeIfAbsent(id, (key) -> new AtomicInteger()).incrementAndGet();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      String name = names.get(id);
+      if (name == null) {
+        exchange.sendResponseHeaders(204, -1);
+      } else {
+        byte[] body = ("{\"id\":\"" + id + "\",\"name\":\"" + name + "\"}").getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      }
+      exchange.close();
+    });
+    stub.start();
+    baseUrl = "http://127.0.0.1:" + stub.getAddress().getPort() + "/profile/";
+    client = asyncHttpClient();
+  }
+
+  @AfterEach
+  void stopStub() throws Exception {
+    client.close();
+    stub.stop(0);
+  }
+
+  private static String undashed(UUID uuid) {
+    return uuid.toString().replace("-", "");
+  }
+
+  private int requestCount(UUID uuid) {
+    AtomicInteger count = requests.get(undashed(uuid));
+    return count == null ? 0 : count.get();
+  }
+
+  private PlayerNameResolver resolver(int maxSize) {
+    return new PlayerNameResolver(client, baseUrl, maxSize, (uuid) -> null);
+  }
+
+  @Test
+  void resolvesAndCaches() {
+    PlayerNameResolver resolver = resolver(16);
+    assertEquals("alice", resolver.resolve(ALICE).join());
+    assertEquals("alice", resolver.resolve(ALICE).join());
+    assertEquals(1, requestCount(ALICE));
+  }
+
+  @Test
+  void usesLocalLookupFirst() {
+    PlayerNameResolver resolver = new PlayerNameResolver(client, baseUrl, 16, (uuid) -> "local");
+    assertEquals("local", resolver.resolve(ALICE).join());
+    assertEquals(0, requestCount(ALICE));
+  }
+
+  @Test
+  void cachesMissingPlayers() {
+    PlayerNameResolver resolver = resolver(16);
+    assertEquals("", resolver.resolve(MISSING).join());
+    assertEquals("", resolver.resolve(MISSING).join());
+    assertEquals(1, requestCount(MISSING));
+  }
+
+  @Test
+  void coalescesConcurrentLookups() {
+    PlayerNameResolver resolver = resolver(16);
+    release = new CountDownLatch(1);
+    ArrayList<CompletableFuture<String>> futures = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      futures.add(resolver.resolve(BOB));
+    }
+    // Nothing is known yet, so the caller gets a placeholder instead of waiting.
+    assertEquals(PlayerNameResolver.placeholder(BOB), resolver.getNameOrPlaceholder(BOB));
+    release.countDown();
+    for (CompletableFuture<String> future : futures) {
+      assertEquals("bob", future.join());
+    }
+    assertEquals(1, requestCount(BOB));
+    assertEquals("bob", resolver.getNameOrPlaceholder(BOB));
+  }
+
+  @Test
+  void resolvesMany() {
+    PlayerNameResolver resolver = resolver(16);
+    resolver.resolve(ALICE).join();
+    ArrayList<UUID> uuids = new ArrayList<>();
+    uuids.add(ALICE);
+    uuids.add(BOB);
+    uuids.add(MISSING);
+    HashMap<UUID, String> resolved = resolver.resolveAll(uuids).join();
+    assertEquals("alice", resolved.get(ALICE));
+    assertEquals("bob", resolved.get(BOB));
+    assertEquals("", resolved.get(MISSING));
+    assertEquals(1, requestCount(ALICE));
+  }
+
+  @Test
+  void evictsLeastRecentlyUsed() {
+    PlayerNameResolver resolver = resolver(2);
+    resolver.resolve(ALICE).join();
+    resolver.resolve(BOB).join();
+    resolver.resolve(ALICE).join();
+    // BOB is the least recently used, so CAROL replaces it.
+    resolver.resolve(CAROL).join();
+    resolver.resolve(ALICE).join();
+    resolver.resolve(BOB).join();
+    assertEquals(1, requestCount(ALICE));
+    assertEquals(2, requestCount(BOB));
+  }
+}
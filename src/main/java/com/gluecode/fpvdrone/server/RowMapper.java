@@ -0,0 +1,13 @@
+package com.gluecode.fpvdrone.server;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/*
+Reads the current row of a ResultSet into an object.
+Used by MySQLHelper.query and MySQLHelper.queryEach.
+* */
+@FunctionalInterface
+public interface RowMapper<T> {
+  T map(ResultSet result) throws SQLException;
+}
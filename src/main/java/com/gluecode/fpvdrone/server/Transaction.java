@@ -0,0 +1,13 @@
+package com.gluecode.fpvdrone.server;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/*
+Work that runs on one connection inside a transaction.
+Used by MySQLHelper.withTransaction.
+* */
+@FunctionalInterface
+public interface Transaction<T> {
+  T run(Connection connection) throws SQLException;
+}
@@ -1,7 +1,7 @@
 package com.gluecode.fpvdrone.server.claiming;
 
+import com.gluecode.fpvdrone.server.DimensionRegistry;
 import com.gluecode.fpvdrone.server.Main;
-import net.minecraft.entity.Entity;
 import net.minecraft.util.RegistryKey;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.world.World;
@@ -9,65 +9,138 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 public class ChunkClaim {
   private static final String filePath = "data/" + Main.MOD_ID + ".json";
-  private static final String OWNER = "owner";
-  private static final String COLLABORATORS = "collaborators";
+  private static final String journalPath = "data/" + Main.MOD_ID + ".journal";
+  static final String OWNER = "owner";
+  static final String COLLABORATORS = "collaborators";
+  // Snapshot version 2: {version: 2, regions: [{dimension, minX, minZ, maxX, maxZ, owner, collaborators}]}
+  static final String VERSION = "version";
+  static final String REGIONS = "regions";
+  static final String DIMENSION = "dimension";
+  static final String MIN_X = "minX";
+  static final String MIN_Z = "minZ";
+  static final String MAX_X = "maxX";
+  static final String MAX_Z = "maxZ";
+  static final int SNAPSHOT_VERSION = 2;
+
+  // Journal records: {op, chunk, player}
+  private static final String OP = "op";
+  private static final String CHUNK = "chunk";
+  private static final String PLAYER = "player";
+  private static final String CLAIM = "claim";
+  private static final String UNCLAIM = "unclaim";
+  private static final String PERMIT = "permit";
+  private static final String UNPERMIT = "unpermit";
+  private static final String TRANSFER = "transfer";
+  // The journal is compacted into the snapshot after this many records.
+  private static final int COMPACT_AFTER = 1000;
 
   private static File file;
   private static boolean loaded;
+  private static int journalSize = 0;
   /*
-  Looks like this:
+  The snapshot file looks like this:
 
   const store = {
-      "[0, 0]": {
+      version: 2,
+      regions: [
+          {
+              dimension: "minecraft:overworld",
+              minX: 0, minZ: 0, maxX: 15, maxZ: 15,
+              owner: "uuid-1",
+              collaborators: ["uuid-2", 'uuid-3']
+          }
+      ]
+  }
+
+  Each region is a rectangle of chunks with the same owner and collaborators,
+  so a large claim is one entry instead of one per chunk.
+  Snapshots without a version have one entry per chunk:
+
+  const store = {
+      "[minecraft:overworld, 0, 0]": {
           owner: "uuid-1",
           collaborators: ["uuid-2", 'uuid-3']
       }
   }
 
+  Changes made since the snapshot are in the journal. See ClaimJournal.
+
+  In memory, each dimension keeps its claims as runs of chunks. See ClaimRegions.
   * */
-  private static JSONObject claims = (JSONObject) JSONValue.parse("{}");
-  private static HashMap<String, Integer> claimCounts = new HashMap<>();
+  // DimensionRegistry id -> claims of the dimension, or null if it never had any.
+  private static ArrayList<ClaimRegions> claims = new ArrayList<>();
+  // Claims refer to players by their index in this table.
+  private static ArrayList<UUID> players = new ArrayList<>();
+  private static HashMap<UUID, Integer> playerIndexes = new HashMap<>();
+  // player index -> the chunks they own or are permitted in
+  private static ArrayList<PlayerClaims> playerClaims = new ArrayList<>();
   public static final int MAX_CLAIMS = 1000;
+  public static final int LIST_PAGE_SIZE = 10;
 
   public static void load() {
+    load(new File(filePath), new File(journalPath));
+  }
+
+  /*
+  Loads the snapshot, replays the journal on top of it, and opens the journal for new changes.
+  * */
+  static void load(File snapshotFile, File journalFile) {
     try {
       Main.LOGGER.info("LOADING CHUNK CLAIM");
       Main.LOGGER.info("loaded: " + loaded);
       if (!loaded) {
-        Main.LOGGER.info("Looking for: " + filePath);
-        file = new File(filePath);
+        Main.LOGGER.info("Looking for: " + snapshotFile.getPath());
+        file = snapshotFile;
 
+        JSONObject json = null;
         if (file.exists()) {
           FileReader reader = new FileReader(file);
-          claims = (JSONObject) JSONValue.parse(reader);
+          json = (JSONObject) JSONValue.parse(reader);
           reader.close();
-          if (claims != null) {
-            loaded = true;
+          if (json == null) {
+            throw new Exception("Unable to parse " + file.getPath());
+          }
+          Main.LOGGER.info("Successfully loaded JSON from file: " + file.getPath());
+          if (json.containsKey(VERSION)) {
+            for (Object region : (JSONArray) json.get(REGIONS)) {
+              putRegion((JSONObject) region);
+            }
+          } else {
+            for (Object key : json.keySet()) {
+              JSONObject chunk = (JSONObject) json.get(key);
+              putClaim((String) key, chunk);
+            }
           }
         }
 
-        if (loaded) {
-          Main.LOGGER.info("Successfully loaded JSON from file: " + filePath);
-          int count = 0;
-          for (Object pos : claims.keySet()) {
-            JSONObject chunk = (JSONObject) claims.get(pos);
-            String ownerUuid = (String) chunk.get(OWNER);
-
-            int current = getClaimCount(ownerUuid);
-            claimCounts.put(ownerUuid, current + 1);
+        ArrayList<JSONObject> records = ClaimJournal.read(journalFile);
+        for (JSONObject record : records) {
+          replay(record);
+        }
+        Main.LOGGER.info("Replayed " + records.size() + " claim changes.");
+
+        int count = 0;
+        int runs = 0;
+        for (ClaimRegions dimensionClaims : claims) {
+          if (dimensionClaims == null) continue;
+          count += dimensionClaims.size();
+          runs += dimensionClaims.runs();
+        }
+        Main.LOGGER.info("There are " + count + " claims registered in " + runs + " runs.");
 
-            count++;
-          }
-          Main.LOGGER.info("There are " + count + " claims registered.");
-        } else {
-          claims = new JSONObject();
-          loaded = true;
+        ClaimJournal.open(journalFile, file);
+        loaded = true;
+        if (json == null || !json.containsKey(VERSION) || !records.isEmpty()) {
           save();
         }
       }
@@ -77,62 +150,285 @@ public class ChunkClaim {
     }
   }
 
+  /*
+  Compacts the journal into a new snapshot in the background.
+  Claim changes are journaled as they happen, so this is only needed to keep the journal short.
+  * */
   public static void save() {
-    try {
-      Main.LOGGER.info("Attempting to save chunk claims...");
-      Main.LOGGER.info("loaded: " + loaded);
-      if (!loaded || claims == null) {
-        throw new Exception("Unable to save claims. Server cannot safely run without claims.");
-      }
+    if (!loaded) {
+      Main.LOGGER.error("Unable to save claims. Server cannot safely run without claims.");
+      return;
+    }
+    Main.LOGGER.info("Compacting chunk claims...");
+    HashMap<RegistryKey<World>, ClaimRegions> byDimension = new HashMap<>();
+    for (int dimension = 0; dimension < claims.size(); dimension++) {
+      if (claims.get(dimension) == null) continue;
+      byDimension.put(DimensionRegistry.key(dimension), claims.get(dimension));
+    }
+    ClaimJournal.compact(new ClaimSnapshot(byDimension, players));
+    journalSize = 0;
+  }
 
-      if (!file.exists()) {
-        file.getParentFile().mkdirs();
-        if (file.createNewFile()) {
-          Main.LOGGER.info("Successfully empty file: " + filePath);
-        }
+  /*
+  Compacts and waits for the journal to be written.
+  * */
+  public static void close() {
+    if (!loaded) return;
+    save();
+    ClaimJournal.close(10, TimeUnit.SECONDS);
+  }
+
+  /*
+  Closes the journal without compacting and forgets every claim, so the next load reads the files again.
+  Used during unit testing.
+  * */
+  static void unload() {
+    ClaimJournal.close(10, TimeUnit.SECONDS);
+    loaded = false;
+    journalSize = 0;
+    claims = new ArrayList<>();
+    players = new ArrayList<>();
+    playerIndexes = new HashMap<>();
+    playerClaims = new ArrayList<>();
+  }
+
+  public static String describe() {
+    int count = 0;
+    int runs = 0;
+    for (ClaimRegions dimensionClaims : claims) {
+      if (dimensionClaims == null) continue;
+      count += dimensionClaims.size();
+      runs += dimensionClaims.runs();
+    }
+    return "claims: " + count + " chunks in " + runs + " runs, " +
+    ClaimAcl.poolSize() + " distinct collaborator lists";
+  }
+
+  private static void journal(String op, RegistryKey<World> dimension, long pos, int player) {
+    ClaimJournal.append(record(op, dimension, pos, player));
+    journaled(1);
+  }
+
+  private static void journal(ArrayList<JSONObject> records) {
+    ClaimJournal.append(records);
+    journaled(records.size());
+  }
+
+  private static JSONObject record(String op, RegistryKey<World> dimension, long pos, int player) {
+    JSONObject record = new JSONObject();
+    record.put(OP, op);
+    record.put(CHUNK, key(dimension, pos));
+    record.put(PLAYER, players.get(player).toString());
+    return record;
+  }
+
+  private static void journaled(int records) {
+    journalSize += records;
+    if (journalSize >= COMPACT_AFTER) {
+      save();
+    }
+  }
+
+  /*
+  Adds a claim read from a snapshot without a version.
+  * */
+  private static void putClaim(String key, JSONObject chunk) {
+    putRecord(parseDimension(key), parsePos(key), parseClaim(chunk));
+  }
+
+  /*
+  Adds a region read from the snapshot.
+  * */
+  private static void putRegion(JSONObject region) {
+    RegistryKey<World> dimension = DimensionRegistry.key((String) region.get(DIMENSION));
+    ClaimRecord claim = parseClaim(region);
+    int minX = ((Number) region.get(MIN_X)).intValue();
+    int minZ = ((Number) region.get(MIN_Z)).intValue();
+    int maxX = ((Number) region.get(MAX_X)).intValue();
+    int maxZ = ((Number) region.get(MAX_Z)).intValue();
+    for (int z = minZ; z <= maxZ; z++) {
+      for (int x = minX; x <= maxX; x++) {
+        putRecord(dimension, ChunkPos.asLong(x, z), claim);
       }
+    }
+  }
 
-      if (!file.exists()) {
-        throw new Exception("Unable to save claims. Server cannot safely run without claims.");
+  private static ClaimRecord parseClaim(JSONObject json) {
+    int owner = getPlayerIndex(UUID.fromString((String) json.get(OWNER)));
+    ClaimRecord claim = new ClaimRecord(owner);
+    JSONArray collaborators = (JSONArray) json.get(COLLABORATORS);
+    if (collaborators != null) {
+      for (Object uuid : collaborators) {
+        claim = claim.withCollaborator(getPlayerIndex(UUID.fromString((String) uuid)));
       }
+    }
+    return claim;
+  }
 
-      FileWriter writer = new FileWriter(file);
-      claims.writeJSONString(writer);
-      writer.close();
-      Main.LOGGER.info("Saved chunk claims.");
-    } catch (Exception e) {
-      Main.LOGGER.error(e);
-      Main.shutdown("Unable to save claims. Server is unsafe.");
+  /*
+  Applies a journal record on top of the snapshot.
+  * */
+  private static void replay(JSONObject record) {
+    String key = (String) record.get(CHUNK);
+    RegistryKey<World> dimension = parseDimension(key);
+    long pos = parsePos(key);
+    int player = getPlayerIndex(UUID.fromString((String) record.get(PLAYER)));
+    ClaimRecord claim = getDimensionClaims(dimension).get(pos);
+
+    String op = (String) record.get(OP);
+    if (CLAIM.equals(op)) {
+      putRecord(dimension, pos, new ClaimRecord(player));
+    } else if (UNCLAIM.equals(op)) {
+      putRecord(dimension, pos, null);
+    } else if (PERMIT.equals(op)) {
+      if (claim != null) putRecord(dimension, pos, claim.withCollaborator(player));
+    } else if (UNPERMIT.equals(op)) {
+      if (claim != null) putRecord(dimension, pos, claim.withoutCollaborator(player));
+    } else if (TRANSFER.equals(op)) {
+      if (claim != null) putRecord(dimension, pos, claim.withOwner(player));
+    } else {
+      Main.LOGGER.error("Unknown claim journal record: " + record.toJSONString());
+    }
+  }
+
+  /*
+  Every change to a claim goes through here, so that PlayerClaims stays in step.
+  A null claim removes the chunk. Returns the previous claim.
+  * */
+  private static @Nullable ClaimRecord putRecord(RegistryKey<World> dimension, long pos, @Nullable ClaimRecord claim) {
+    int id = DimensionRegistry.id(dimension);
+    ClaimRecord prevClaim = getDimensionClaims(id).put(pos, claim);
+    if (prevClaim != null && (claim == null || claim.owner != prevClaim.owner)) {
+      playerClaims.get(prevClaim.owner).putOwned(id, pos, null);
+    }
+    if (claim != null) {
+      playerClaims.get(claim.owner).putOwned(id, pos, claim);
+      for (int collaborator : claim.collaborators.players) {
+        if (prevClaim == null || prevClaim.owner != claim.owner || !prevClaim.isCollaborator(collaborator)) {
+          playerClaims.get(collaborator).permittedBy.add(claim.owner);
+        }
+      }
     }
+    return prevClaim;
+  }
+
+  // Keys look like "[dimension, x, z]".
+  private static RegistryKey<World> parseDimension(String key) {
+    return DimensionRegistry.key(key.substring(1, key.indexOf(", ")));
+  }
+
+  private static long parsePos(String key) {
+    String[] parts = key.substring(1, key.length() - 1).split(", ");
+    return ChunkPos.asLong(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
   }
 
   public static String key(ChunkPos pos, World world) {
-    String dimensionKey = Main.getDimension(world);
-    return "[" + dimensionKey + ", " + pos.x + ", " + pos.z + "]";
+    return key(world.dimension(), pos.toLong());
   }
 
-  public static int getClaimCount(String ownerUuid) {
-    Integer current = claimCounts.get(ownerUuid);
-    if (current == null) {
-      current = 0;
+  static String key(RegistryKey<World> dimension, long pos) {
+    return "[" + DimensionRegistry.name(dimension) + ", " + ChunkPos.getX(pos) + ", " + ChunkPos.getZ(pos) + "]";
+  }
+
+  private static ClaimRegions getDimensionClaims(RegistryKey<World> dimension) {
+    return getDimensionClaims(DimensionRegistry.id(dimension));
+  }
+
+  private static ClaimRegions getDimensionClaims(int id) {
+    while (claims.size() <= id) {
+      claims.add(null);
+    }
+    ClaimRegions dimensionClaims = claims.get(id);
+    if (dimensionClaims == null) {
+      dimensionClaims = new ClaimRegions();
+      claims.set(id, dimensionClaims);
     }
-    return current;
+    return dimensionClaims;
+  }
+
+  private static @Nullable ClaimRegions findDimensionClaims(int dimension) {
+    return dimension < claims.size() ? claims.get(dimension) : null;
+  }
+
+  private static @Nullable ClaimRecord getClaim(World world, int chunkX, int chunkZ) {
+    return getClaim(Main.getDimensionId(world), chunkX, chunkZ);
+  }
+
+  private static @Nullable ClaimRecord getClaim(int dimension, int chunkX, int chunkZ) {
+    ClaimRegions dimensionClaims = findDimensionClaims(dimension);
+    if (dimensionClaims == null) return null;
+    return dimensionClaims.get(chunkX, chunkZ);
+  }
+
+  private static @Nullable ClaimRecord getClaim(ChunkPos pos, World world) {
+    return getClaim(world, pos.x, pos.z);
+  }
+
+  /*
+  Adds the player to the table if needed.
+  * */
+  private static int getPlayerIndex(UUID uuid) {
+    Integer index = playerIndexes.get(uuid);
+    if (index != null) return index;
+    index = players.size();
+    players.add(uuid);
+    playerIndexes.put(uuid, index);
+    playerClaims.add(new PlayerClaims());
+    return index;
+  }
+
+  /*
+  Returns -1 if the player has never been part of a claim.
+  * */
+  private static int findPlayerIndex(String uuid) {
+    Integer index = playerIndexes.get(UUID.fromString(uuid));
+    return index == null ? -1 : index;
+  }
+
+  public static int getClaimCount(String ownerUuid) {
+    int owner = findPlayerIndex(ownerUuid);
+    if (owner == -1) return 0;
+    return playerClaims.get(owner).ownedCount;
   }
 
   public static String getOwner(ChunkPos pos, World world) {
-    JSONObject claim = (JSONObject) claims.get(key(pos, world));
+    return getOwner(getClaim(pos, world));
+  }
+
+  /*
+  Looks the chunk up by dimension name. Used during unit testing.
+  * */
+  static String getOwner(String dimension, int chunkX, int chunkZ) {
+    return getOwner(getClaim(DimensionRegistry.id(dimension), chunkX, chunkZ));
+  }
+
+  private static String getOwner(@Nullable ClaimRecord claim) {
     if (claim == null) {
       return null;
     }
-    return (String) claim.get(OWNER);
+    return players.get(claim.owner).toString();
   }
 
   public static ArrayList<String> getCollaborators(ChunkPos pos, World world) {
-    JSONObject claim = (JSONObject) claims.get(key(pos, world));
+    return getCollaborators(getClaim(pos, world));
+  }
+
+  /*
+  Looks the chunk up by dimension name. Used during unit testing.
+  * */
+  static ArrayList<String> getCollaborators(String dimension, int chunkX, int chunkZ) {
+    return getCollaborators(getClaim(DimensionRegistry.id(dimension), chunkX, chunkZ));
+  }
+
+  private static ArrayList<String> getCollaborators(@Nullable ClaimRecord claim) {
     if (claim == null) {
       return null;
     }
-    return (ArrayList<String>) claim.get(COLLABORATORS);
+    ArrayList<String> collaborators = new ArrayList<>(claim.collaborators.size());
+    for (int collaborator : claim.collaborators.players) {
+      collaborators.add(players.get(collaborator).toString());
+    }
+    return collaborators;
   }
 
   public static boolean checkQuota(String ownerUuid) {
@@ -140,39 +436,49 @@ public class ChunkClaim {
   }
 
   public static boolean checkClaimed(ChunkPos pos, World world) {
-    JSONObject claim = (JSONObject) claims.get(key(pos, world));
-    return claim != null;
+    return getClaim(pos, world) != null;
+  }
+
+  public static boolean checkClaimed(World world, int chunkX, int chunkZ) {
+    return getClaim(world, chunkX, chunkZ) != null;
   }
 
   public static boolean checkOwner(String entity, ChunkPos pos, World world) {
-    String owner = getOwner(pos, world);
-    if (owner == null) {
+    ClaimRecord claim = getClaim(pos, world);
+    if (claim == null) {
       // unclaimed chunk
       return false;
     }
-    return entity.equalsIgnoreCase(owner);
+    return claim.owner == findPlayerIndex(entity);
   }
 
   /*
   * Entity caller is used to get the current dimension.
   * */
   public static boolean checkCollaborator(String entity, ChunkPos pos, World world) {
-    ArrayList<String> collaborators = getCollaborators(pos, world);
-    if (collaborators == null) {
+    ClaimRecord claim = getClaim(pos, world);
+    if (claim == null) {
       return false;
     }
-    return collaborators.contains(entity);
+    int player = findPlayerIndex(entity);
+    return player != -1 && claim.isCollaborator(player);
   }
 
   /*
    * Entity caller is used to get the current dimension.
    * */
   public static boolean checkPermission(String entity, ChunkPos pos, World world) {
-    boolean isClaimed = checkClaimed(pos, world);
-    if (!isClaimed) return true;
-    boolean isOwner = checkOwner(entity, pos, world);
-    if (isOwner) return true;
-    return checkCollaborator(entity, pos, world);
+    return checkPermission(UUID.fromString(entity), world, pos.x, pos.z);
+  }
+
+  /*
+  Called for every block event, so it does one probe and a binary search, and allocates nothing.
+  * */
+  public static boolean checkPermission(UUID entity, World world, int chunkX, int chunkZ) {
+    ClaimRecord claim = getClaim(world, chunkX, chunkZ);
+    if (claim == null) return true;
+    Integer player = playerIndexes.get(entity);
+    return player != null && claim.isMember(player);
   }
 
   // returns true := success
@@ -186,14 +492,9 @@ public class ChunkClaim {
       return false;
     }
 
-    JSONObject newClaim = new JSONObject();
-    newClaim.put(OWNER, entity);
-    newClaim.put(COLLABORATORS, new JSONArray());
-    claims.put(key(pos, world), newClaim);
-
-    claimCounts.put(entity, count + 1);
-
-    save();
+    int owner = getPlayerIndex(UUID.fromString(entity));
+    putRecord(world.dimension(), pos.toLong(), new ClaimRecord(owner));
+    journal(CLAIM, world.dimension(), pos.toLong(), owner);
     return true;
   }
 
@@ -202,13 +503,109 @@ public class ChunkClaim {
       return false;
     }
 
-    claims.remove(key(pos, world));
+    ClaimRecord claim = putRecord(world.dimension(), pos.toLong(), null);
+    journal(UNCLAIM, world.dimension(), pos.toLong(), claim.owner);
+    return true;
+  }
 
-    int current = getClaimCount(entity);
-    claimCounts.put(entity, current - 1);
+  /*
+  The outcome of claimRegion or unclaimRegion.
+  * */
+  public static class RegionResult {
+    public int changed; // claimed or unclaimed
+    public int unchanged; // already yours when claiming, already free when unclaiming
+    public int conflicts; // claimed by someone else
+    public int overQuota; // not claimed because the quota ran out
+
+    public boolean hasErrors() {
+      return conflicts > 0 || overQuota > 0;
+    }
 
-    save();
-    return true;
+    /*
+    One message for the whole region, or null if there is nothing to say.
+    * */
+    public @Nullable String describe(String verb) {
+      ArrayList<String> lines = new ArrayList<>();
+      if (changed > 0) {
+        lines.add(chunks(changed) + " " + verb + "!");
+      }
+      if (conflicts > 0) {
+        lines.add(chunks(conflicts) + " claimed by someone else!");
+      }
+      if (overQuota > 0) {
+        lines.add("You have reach the maximum amount of claims! " + chunks(overQuota) + " not claimed.");
+      }
+      return lines.isEmpty() ? null : String.join("\n", lines);
+    }
+
+    private static String chunks(int count) {
+      return count + (count == 1 ? " chunk" : " chunks");
+    }
+  }
+
+  /*
+  Claims every free chunk of rect.
+  The quota is checked once, and the claims are journaled together.
+  * */
+  public static RegionResult claimRegion(String entity, World world, ChunkRect rect) {
+    RegionResult result = new RegionResult();
+    RegistryKey<World> dimension = world.dimension();
+    ClaimRegions dimensionClaims = getDimensionClaims(dimension);
+    int owner = getPlayerIndex(UUID.fromString(entity));
+    int quota = MAX_CLAIMS - playerClaims.get(owner).ownedCount;
+
+    ArrayList<JSONObject> records = new ArrayList<>();
+    for (int z = rect.minZ; z <= rect.maxZ; z++) {
+      for (int x = rect.minX; x <= rect.maxX; x++) {
+        long pos = ChunkPos.asLong(x, z);
+        ClaimRecord claim = dimensionClaims.get(pos);
+        if (claim != null) {
+          if (claim.owner == owner) {
+            result.unchanged++;
+          } else {
+            result.conflicts++;
+          }
+        } else if (quota <= 0) {
+          result.overQuota++;
+        } else {
+          putRecord(dimension, pos, new ClaimRecord(owner));
+          records.add(record(CLAIM, dimension, pos, owner));
+          quota--;
+          result.changed++;
+        }
+      }
+    }
+    journal(records);
+    return result;
+  }
+
+  /*
+  Unclaims every chunk of rect that entity owns. The changes are journaled together.
+  * */
+  public static RegionResult unclaimRegion(String entity, World world, ChunkRect rect) {
+    RegionResult result = new RegionResult();
+    RegistryKey<World> dimension = world.dimension();
+    ClaimRegions dimensionClaims = getDimensionClaims(dimension);
+    int owner = findPlayerIndex(entity);
+
+    ArrayList<JSONObject> records = new ArrayList<>();
+    for (int z = rect.minZ; z <= rect.maxZ; z++) {
+      for (int x = rect.minX; x <= rect.maxX; x++) {
+        long pos = ChunkPos.asLong(x, z);
+        ClaimRecord claim = dimensionClaims.get(pos);
+        if (claim == null) {
+          result.unchanged++;
+        } else if (claim.owner != owner) {
+          result.conflicts++;
+        } else {
+          putRecord(dimension, pos, null);
+          records.add(record(UNCLAIM, dimension, pos, owner));
+          result.changed++;
+        }
+      }
+    }
+    journal(records);
+    return result;
   }
 
   public static String info(String entity, ChunkPos pos, World world) {
@@ -246,62 +643,76 @@ public class ChunkClaim {
     }
   }
 
-  public static String list(String entityUuid) {
-    ArrayList<String> ownerChunks = new ArrayList<>();
-    ArrayList<String> collaboratorChunks = new ArrayList<>();
-    for (Object key : claims.keySet()) {
-      JSONObject claimObject = (JSONObject) claims.get(key);
-      if (claimObject == null) continue;
+  /*
+  Reads only the player's own PlayerClaims. Neighbouring chunks are shown as rectangles.
+  Own claims are split where their collaborators differ.
+  page starts at 1.
+  * */
+  public static String list(String entityUuid, int page) {
+    ArrayList<String> lines = new ArrayList<>();
+    int player = findPlayerIndex(entityUuid);
+    PlayerClaims index = player == -1 ? null : playerClaims.get(player);
 
-      String ownerUuid = (String) claimObject.get(OWNER);
-      if (ownerUuid != null) {
-        boolean uuidMatch = ownerUuid.equalsIgnoreCase(entityUuid);
-        if (uuidMatch) {
-          ownerChunks.add((String) key);
+    if (index == null || index.ownedCount == 0) {
+      lines.add("You have no claims.");
+    } else {
+      lines.add("Your claims:");
+      for (int dimension = 0; dimension < index.owned.size(); dimension++) {
+        ClaimRegions owned = index.owned.get(dimension);
+        if (owned == null) continue;
+        String name = DimensionRegistry.name(dimension);
+        for (ClaimRegions.Region region : owned.regions()) {
+          lines.add(name + " " + region.rect);
         }
       }
+    }
 
-      JSONArray collabs = (JSONArray) claimObject.get(COLLABORATORS);
-      if (collabs != null) {
-        boolean uuidMatch = collabs.contains(entityUuid);
-        if (uuidMatch) {
-          collaboratorChunks.add((String) key);
+    // Only the claims of owners who listed the player are walked:
+    ArrayList<String> permittedLines = new ArrayList<>();
+    if (index != null) {
+      Iterator<Integer> owners = index.permittedBy.iterator();
+      while (owners.hasNext()) {
+        int owner = owners.next();
+        ArrayList<ClaimRegions> ownerClaims = playerClaims.get(owner).owned;
+        String ownerName = null;
+        for (int dimension = 0; dimension < ownerClaims.size(); dimension++) {
+          if (ownerClaims.get(dimension) == null) continue;
+          for (ClaimRegions.Region region : ownerClaims.get(dimension).regions()) {
+            if (!region.claim.isCollaborator(player)) continue;
+            if (ownerName == null) {
+              ownerName = Main.getPlayerNameFromUuid(players.get(owner).toString());
+            }
+            permittedLines.add(ownerName + ": " + DimensionRegistry.name(dimension) + " " + region.rect);
+          }
+        }
+        if (ownerName == null) {
+          // The owner has since removed the player everywhere.
+          owners.remove();
         }
       }
     }
-
-    StringBuilder builder = new StringBuilder();
-
-    String ownerString;
-    for (String pos : ownerChunks) {
-      builder.append(pos).append("\n");
-    }
-    if (builder.length() == 0) {
-      ownerString = "You have no claims.";
+    if (permittedLines.isEmpty()) {
+      lines.add("No one has permitted you to edit their chunks.");
     } else {
-      builder.insert(0, "Your claims:\n");
-      ownerString = builder.toString();
+      lines.add("You are permitted:");
+      lines.addAll(permittedLines);
     }
 
-    builder = new StringBuilder();
-
-    String collabString;
-    for (String pos : collaboratorChunks) {
-      JSONObject claimObject = (JSONObject) claims.get(pos);
-      builder.append(Main.getPlayerNameFromUuid((String) claimObject.get(OWNER))).append(": ").append(pos).append("\n");
-    }
-    if (builder.length() == 0) {
-      collabString = "No one has permitted you to edit their chunks.";
-    } else {
-      builder.insert(0, "Your are permitted:\n");
-      collabString = builder.toString();
+    int pages = Math.max(1, (lines.size() + LIST_PAGE_SIZE - 1) / LIST_PAGE_SIZE);
+    page = Math.max(1, Math.min(page, pages));
+    StringBuilder builder = new StringBuilder();
+    int end = Math.min(lines.size(), page * LIST_PAGE_SIZE);
+    for (int i = (page - 1) * LIST_PAGE_SIZE; i < end; i++) {
+      builder.append(lines.get(i)).append("\n");
     }
 
     int count = getClaimCount(entityUuid);
     int remaining = MAX_CLAIMS - count;
-    String quota = remaining + " claim quota available.";
-
-    return ownerString + "\n" + collabString + "\n" + quota;
+    builder.append(remaining).append(" claim quota available.");
+    if (pages > 1) {
+      builder.append("\nPage ").append(page).append("/").append(pages).append(". See more with /chunk list <page>");
+    }
+    return builder.toString();
   }
 
   public static boolean permit(String owner, String entity, ChunkPos pos, World world) {
@@ -318,10 +729,10 @@ public class ChunkClaim {
         return false;
       }
 
-      JSONObject existingClaim = (JSONObject) claims.get(key(pos, world));
-      JSONArray collabs = (JSONArray) existingClaim.get(COLLABORATORS);
-      collabs.add(entity);
-      save();
+      int collaborator = getPlayerIndex(UUID.fromString(entity));
+      ClaimRecord claim = getClaim(pos, world);
+      putRecord(world.dimension(), pos.toLong(), claim.withCollaborator(collaborator));
+      journal(PERMIT, world.dimension(), pos.toLong(), collaborator);
       return true;
     } else {
       return false;
@@ -336,26 +747,61 @@ public class ChunkClaim {
 
     if (checkOwner(owner, pos, world)) {
       // only owner can do this.
-      String entityUuid = entity;
-      JSONObject existingClaim = (JSONObject) claims.get(key(pos, world));
-      JSONArray collabs = (JSONArray) existingClaim.get(COLLABORATORS);
-      int index = -1;
-      for (int i = 0; i < collabs.size(); i++) {
-        String uuid = (String) collabs.get(i);
-        if (uuid.equalsIgnoreCase(entityUuid)) {
-          index = i;
-          break;
-        }
-      }
-      collabs.remove(index);
-      save();
+      int collaborator = findPlayerIndex(entity);
+      ClaimRecord claim = getClaim(pos, world);
+      putRecord(world.dimension(), pos.toLong(), claim.withoutCollaborator(collaborator));
+      journal(UNPERMIT, world.dimension(), pos.toLong(), collaborator);
       return true;
     } else {
       return false;
     }
   }
 
-  public static void transfer(Entity entity, ChunkPos pos) {
-    save();
+  /*
+  Gives a chunk to another player. Collaborators keep their permission.
+  * */
+  public static boolean transfer(String owner, String entity, ChunkPos pos, World world) {
+    if (!checkOwner(owner, pos, world) || !checkQuota(entity)) {
+      return false;
+    }
+
+    int newOwner = getPlayerIndex(UUID.fromString(entity));
+    ClaimRecord claim = getClaim(pos, world);
+    putRecord(world.dimension(), pos.toLong(), claim.withOwner(newOwner));
+    journal(TRANSFER, world.dimension(), pos.toLong(), newOwner);
+    return true;
+  }
+
+  /*
+  Gives all the owner's chunks to another player.
+  Returns the number of chunks, or -1 if they don't fit in the quota of entity.
+  * */
+  public static int transferAll(String owner, String entity) {
+    int prevOwner = findPlayerIndex(owner);
+    if (prevOwner == -1) return 0;
+    int count = playerClaims.get(prevOwner).ownedCount;
+    if (count == 0) return 0;
+    if (getClaimCount(entity) + count > MAX_CLAIMS) return -1;
+
+    int newOwner = getPlayerIndex(UUID.fromString(entity));
+    ArrayList<ClaimRegions> owned = playerClaims.get(prevOwner).owned;
+    ArrayList<JSONObject> records = new ArrayList<>(count);
+    for (int id = 0; id < owned.size(); id++) {
+      if (owned.get(id) == null) continue;
+      RegistryKey<World> dimension = DimensionRegistry.key(id);
+      // regions() is a copy, so putRecord can empty the owned runs while they are walked.
+      for (ClaimRegions.Region region : owned.get(id).regions()) {
+        ClaimRecord claim = region.claim.withOwner(newOwner);
+        for (int z = region.rect.minZ; z <= region.rect.maxZ; z++) {
+          for (int x = region.rect.minX; x <= region.rect.maxX; x++) {
+            long pos = ChunkPos.asLong(x, z);
+            putRecord(dimension, pos, claim);
+            records.add(record(TRANSFER, dimension, pos, newOwner));
+          }
+        }
+      }
+    }
+    journal(records);
+    return count;
   }
 }
@@ -22,12 +22,13 @@ import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.common.Mod;
 
 import javax.swing.text.AttributeSet;
-import java.util.ArrayList;
+import java.util.UUID;
 
 @Mod.EventBusSubscriber
 public class ChunkClaimEvents {
   public static void handleBlockEvent(Entity entity, BlockEvent event) {
-    boolean hasPermission = ChunkClaim.checkPermission(entity.getUUID().toString(), new ChunkPos(event.getPos()), entity.level);
+    BlockPos pos = event.getPos();
+    boolean hasPermission = ChunkClaim.checkPermission(entity.getUUID(), entity.level, pos.getX() >> 4, pos.getZ() >> 4);
     if (!hasPermission) {
       event.setCanceled(true);
     }
@@ -71,36 +72,13 @@ public class ChunkClaimEvents {
     LivingEntity entity = explosion.getSourceMob();
     World world = event.getWorld();
 
-    ArrayList<BlockPos> list = new ArrayList<>(explosion.getToBlow());
-    explosion.clearToBlow();
-
-    if (entity == null) {
-      Main.LOGGER.info("null entity explosion");
-      for (BlockPos pos : list) {
-        boolean isClaimed = ChunkClaim.checkClaimed(new ChunkPos(pos), world);
-        if (!isClaimed) {
-          explosion.getToBlow().add(pos);
-        }
-      }
+    PlayerEntity player = entity == null ? null : world.getPlayerByUUID(entity.getUUID());
+    if (player == null) {
+      // Explosions without a player can only break unclaimed chunks.
+      ExplosionFilter.filter(explosion.getToBlow(), (chunkX, chunkZ) -> !ChunkClaim.checkClaimed(world, chunkX, chunkZ));
     } else {
-      PlayerEntity player = world.getPlayerByUUID(entity.getUUID());
-      if (player == null) {
-        Main.LOGGER.info("non-player explosion");
-        for (BlockPos pos : list) {
-          boolean isClaimed = ChunkClaim.checkClaimed(new ChunkPos(pos), world);
-          if (!isClaimed) {
-            explosion.getToBlow().add(pos);
-          }
-        }
-      } else {
-        Main.LOGGER.info("player explosion");
-        for (BlockPos pos : list) {
-          boolean hasPermission = ChunkClaim.checkPermission(player.getUUID().toString(), new ChunkPos(pos), world);
-          if (hasPermission) {
-            explosion.getToBlow().add(pos);
-          }
-        }
-      }
+      UUID uuid = player.getUUID();
+      ExplosionFilter.filter(explosion.getToBlow(), (chunkX, chunkZ) -> ChunkClaim.checkPermission(uuid, world, chunkX, chunkZ));
     }
   }
 
@@ -122,33 +100,28 @@ public class ChunkClaimEvents {
     Boolean claimAuto = Main.claimAuto.get(uuid);
     if (claimAuto != null && claimAuto) {
       int size = Main.claimAutoSize.get(uuid);
-      for (int x = nextChunk.x - size; x <= nextChunk.x + size; x++) {
-        for (int z = nextChunk.z - size; z <= nextChunk.z + size; z++) {
-          ChunkPos fragment = new ChunkPos(x, z);
-          if (ChunkClaim.claim(uuid, fragment, world)) {
-            Main.sendSuccessMessage(entity, fragment.toString() + " claimed!");
-          } else {
-            if (!ChunkClaim.checkQuota(uuid)) {
-              Main.sendErrorMessage(entity, fragment.toString() + "You have reach the maximum amount of claims!");
-            } else if (!ChunkClaim.checkOwner(uuid, fragment, world)) {
-              Main.sendErrorMessage(entity, fragment.toString() + " claimed by someone else!");
-            }
-          }
-        }
-      }
+      ChunkClaim.RegionResult result = ChunkClaim.claimRegion(uuid, world, ChunkRect.around(nextChunk, size));
+      sendRegionResult(entity, result, "claimed");
     }
 
     Boolean unclaimAuto = Main.unclaimAuto.get(uuid);
     if (unclaimAuto != null && unclaimAuto) {
       int size = Main.unclaimAutoSize.get(uuid);
-      for (int x = nextChunk.x - size; x <= nextChunk.x + size; x++) {
-        for (int z = nextChunk.z - size; z <= nextChunk.z + size; z++) {
-          ChunkPos fragment = new ChunkPos(x, z);
-          if (ChunkClaim.unclaim(uuid, fragment, world)) {
-            Main.sendSuccessMessage(entity, fragment.toString() + " unclaimed!");
-          }
-        }
+      ChunkClaim.RegionResult result = ChunkClaim.unclaimRegion(uuid, world, ChunkRect.around(nextChunk, size));
+      // Chunks of other players are not mentioned while unclaiming.
+      if (result.changed > 0) {
+        Main.sendSuccessMessage(entity, result.changed + (result.changed == 1 ? " chunk" : " chunks") + " unclaimed!");
       }
     }
   }
+
+  private static void sendRegionResult(Entity entity, ChunkClaim.RegionResult result, String verb) {
+    String message = result.describe(verb);
+    if (message == null) return;
+    if (result.hasErrors()) {
+      Main.sendErrorMessage(entity, message);
+    } else {
+      Main.sendSuccessMessage(entity, message);
+    }
+  }
 }
@@ -11,10 +11,8 @@ import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import com.mojang.brigadier.exceptions.SimpleCommandExceptionType;
 import net.minecraft.command.CommandSource;
 import net.minecraft.command.Commands;
-import net.minecraft.command.arguments.EntityArgument;
 import net.minecraft.command.arguments.EntitySelector;
 import net.minecraft.command.arguments.GameProfileArgument;
-import net.minecraft.entity.Entity;
 import net.minecraft.entity.player.ServerPlayerEntity;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.text.StringTextComponent;
@@ -28,6 +26,7 @@ public class ChunkCommand {
   new StringTextComponent("You do not have chunk permission."));
   private static final SimpleCommandExceptionType TOO_MANY_EXCEPTION = new SimpleCommandExceptionType(
   new StringTextComponent("Only a single entity can be targeted at a time."));
+  private static final int MAX_RADIUS = 5;
 
   public static void register(CommandDispatcher<CommandSource> dispatcher) {
     LiteralArgumentBuilder<CommandSource> chunk = Commands.literal("chunk");
@@ -40,12 +39,21 @@ public class ChunkCommand {
     Commands.literal("auto").executes(ChunkCommand::claimAutoStop).then(Commands.argument(
     "size",
     IntegerArgumentType.integer(0, 2)
-    ).executes(ChunkCommand::claimAuto))));
+    ).executes(ChunkCommand::claimAuto))).then(
+    Commands.literal("radius").then(Commands.argument(
+    "radius",
+    IntegerArgumentType.integer(0, MAX_RADIUS)
+    ).executes(ChunkCommand::claimRadius))));
     chunk.then(Commands.literal("unclaim").executes(ChunkCommand::unclaim).then(
     Commands.literal("auto").executes(ChunkCommand::unclaimAutoStop).then(
     Commands.argument("size", IntegerArgumentType.integer(0, 2)).executes(
-    ChunkCommand::unclaimAuto))));
-    chunk.then(Commands.literal("list").executes(ChunkCommand::list));
+    ChunkCommand::unclaimAuto))).then(
+    Commands.literal("radius").then(Commands.argument(
+    "radius",
+    IntegerArgumentType.integer(0, MAX_RADIUS)
+    ).executes(ChunkCommand::unclaimRadius))));
+    chunk.then(Commands.literal("list").executes(ChunkCommand::list).then(
+    Commands.argument("page", IntegerArgumentType.integer(1)).executes(ChunkCommand::listPage)));
     chunk.then(Commands.literal("permit").then(Commands.argument(
     "user",
     GameProfileArgument.gameProfile()
@@ -57,7 +65,8 @@ public class ChunkCommand {
     chunk.then(Commands.literal("transfer").then(Commands.argument(
     "user",
     GameProfileArgument.gameProfile()
-    ).executes(ChunkCommand::transfer)));
+    ).executes(ChunkCommand::transfer).then(
+    Commands.literal("all").executes(ChunkCommand::transferAll))));
 
     dispatcher.register(chunk);
 
@@ -211,13 +220,16 @@ public class ChunkCommand {
     "/chunk [claim] - Claims the chunk you are standing in.\n" +
     "/chunk [claim] [auto] - Disables automatic chunk claiming.\n" +
     "/chunk [claim] [auto] <size> - Automatically claims chunks you enter.\n" +
+    "/chunk [claim] [radius] <radius> - Claims every chunk within <radius> of the chunk you are in.\n" +
     "/chunk [unclaim] - Unclaims the chunk your are in, if you own it.\n" +
     "/chunk [unclaim] [auto] - Disables automatic chunk unclaiming.\n" +
     "/chunk [unclaim] [auto] <size> - Automatically unclaims chunks you enter.\n" +
-    "/chunk [list] - Lists the chunks you own, and their coordinates.\n" +
+    "/chunk [unclaim] [radius] <radius> - Unclaims your chunks within <radius> of the chunk you are in.\n" +
+    "/chunk [list] <page> - Lists the chunks you own, and their coordinates.\n" +
     "/chunk [permit] <user> - Allows <user> to edit/collborate in the chunk you are in, if you claim it.\n" +
     "/chunk [unpermit] <user> - Removes the permission <user> had to collaborate in your chunk.\n" +
-    "/chunk [transfer] <user> - Transfers ownership of the chunk to <user>."),
+    "/chunk [transfer] <user> - Transfers ownership of the chunk to <user>.\n" +
+    "/chunk [transfer] <user> [all] - Transfers ownership of all your chunks to <user>."),
     false
     );
     return 1;
@@ -286,9 +298,54 @@ public class ChunkCommand {
     return 1;
   }
 
+  private static int claimRadius(CommandContext<CommandSource> context) throws CommandSyntaxException {
+    ServerPlayerEntity player = context.getSource().getPlayerOrException();
+    ChunkPos pos = new ChunkPos(player.xChunk, player.zChunk);
+    int radius = IntegerArgumentType.getInteger(context, "radius");
+
+    ChunkClaim.RegionResult result = ChunkClaim.claimRegion(
+    player.getUUID().toString(),
+    player.level,
+    ChunkRect.around(pos, radius)
+    );
+    sendRegionResult(context, result, "claimed", "Every chunk in this area is already yours.");
+    return 1;
+  }
+
+  private static int unclaimRadius(CommandContext<CommandSource> context) throws CommandSyntaxException {
+    ServerPlayerEntity player = context.getSource().getPlayerOrException();
+    ChunkPos pos = new ChunkPos(player.xChunk, player.zChunk);
+    int radius = IntegerArgumentType.getInteger(context, "radius");
+
+    ChunkClaim.RegionResult result = ChunkClaim.unclaimRegion(
+    player.getUUID().toString(),
+    player.level,
+    ChunkRect.around(pos, radius)
+    );
+    sendRegionResult(context, result, "unclaimed", "You have no claims in this area.");
+    return 1;
+  }
+
+  private static void sendRegionResult(CommandContext<CommandSource> context, ChunkClaim.RegionResult result, String verb, String nothing) throws CommandSyntaxException {
+    String message = result.describe(verb);
+    if (result.changed == 0) {
+      throw (new SimpleCommandExceptionType(new StringTextComponent(
+      message != null ? message : nothing))).create();
+    }
+    context.getSource().sendSuccess(new StringTextComponent(message), false);
+  }
+
   private static int list(CommandContext<CommandSource> context) throws CommandSyntaxException {
+    return list(context, 1);
+  }
+
+  private static int listPage(CommandContext<CommandSource> context) throws CommandSyntaxException {
+    return list(context, IntegerArgumentType.getInteger(context, "page"));
+  }
+
+  private static int list(CommandContext<CommandSource> context, int page) throws CommandSyntaxException {
     ServerPlayerEntity player = context.getSource().getPlayerOrException();
-    String list = ChunkClaim.list(player.getUUID().toString());
+    String list = ChunkClaim.list(player.getUUID().toString(), page);
     context.getSource().sendSuccess(new StringTextComponent(list), false);
     return 1;
   }
@@ -387,7 +444,78 @@ public class ChunkCommand {
   }
 
   private static int transfer(CommandContext<CommandSource> context) throws CommandSyntaxException {
-    Entity user = EntityArgument.getEntity(context, "user");
+    ServerPlayerEntity caller = context.getSource().getPlayerOrException();
+    String callerUuid = caller.getUUID().toString();
+    ChunkPos pos = new ChunkPos(caller.xChunk, caller.zChunk);
+    GameProfile gameProfile = getSingleProfile(context);
+    String userUuid = gameProfile.getId().toString();
+
+    if (!ChunkClaim.checkClaimed(pos, caller.level)) {
+      throw (new SimpleCommandExceptionType(new StringTextComponent(
+      "This chunk is unclaimed."))).create();
+    }
+
+    if (!ChunkClaim.checkOwner(callerUuid, pos, caller.level)) {
+      throw PERMISSION_EXCEPTION.create();
+    }
+
+    if (callerUuid.equals(userUuid)) {
+      throw (new SimpleCommandExceptionType(new StringTextComponent(
+      "You already own this chunk."))).create();
+    }
+
+    if (!ChunkClaim.checkQuota(userUuid)) {
+      throw (new SimpleCommandExceptionType(new StringTextComponent(
+      gameProfile.getName() + " has reached the maximum amount of claims!"))).create();
+    }
+
+    if (ChunkClaim.transfer(callerUuid, userUuid, pos, caller.level)) {
+      context.getSource().sendSuccess(new StringTextComponent(
+      pos.toString() + " transferred to " + gameProfile.getName() + "!"), false);
+    } else {
+      throw FAILED_EXCEPTION.create();
+    }
+    return 1;
+  }
+
+  private static int transferAll(CommandContext<CommandSource> context) throws CommandSyntaxException {
+    ServerPlayerEntity caller = context.getSource().getPlayerOrException();
+    String callerUuid = caller.getUUID().toString();
+    GameProfile gameProfile = getSingleProfile(context);
+    String userUuid = gameProfile.getId().toString();
+
+    if (callerUuid.equals(userUuid)) {
+      throw (new SimpleCommandExceptionType(new StringTextComponent(
+      "You already own your chunks."))).create();
+    }
+
+    int count = ChunkClaim.transferAll(callerUuid, userUuid);
+    if (count == -1) {
+      throw (new SimpleCommandExceptionType(new StringTextComponent(
+      gameProfile.getName() + " doesn't have enough claim quota left!"))).create();
+    }
+    if (count == 0) {
+      throw (new SimpleCommandExceptionType(new StringTextComponent(
+      "You have no claims."))).create();
+    }
+
+    context.getSource().sendSuccess(new StringTextComponent(
+    count + " chunks transferred to " + gameProfile.getName() + "!"), false);
     return 1;
   }
+
+  private static GameProfile getSingleProfile(CommandContext<CommandSource> context) throws CommandSyntaxException {
+    Collection<GameProfile> profiles = GameProfileArgument.getGameProfiles(
+    context,
+    "user"
+    );
+    if (profiles.size() > 1) {
+      throw TOO_MANY_EXCEPTION.create();
+    }
+    GameProfile gameProfile = profiles.iterator().next();
+    if (gameProfile == null || gameProfile.getId() == null) {
+      throw FAILED_EXCEPTION.create();
+    }
+    return gameProfile;
+  }
 }
@@ -0,0 +1,43 @@
+package com.gluecode.fpvdrone.server.claiming;
+
+import net.minecraft.util.math.ChunkPos;
+
+/*
+A rectangle of chunks. Both corners are included.
+* */
+public class ChunkRect {
+  public final int minX;
+  public final int minZ;
+  public final int maxX;
+  public final int maxZ;
+
+  public ChunkRect(int minX, int minZ, int maxX, int maxZ) {
+    this.minX = minX;
+    this.minZ = minZ;
+    this.maxX = maxX;
+    this.maxZ = maxZ;
+  }
+
+  /*
+  The square of chunks within size of center.
+  * */
+  public static ChunkRect around(ChunkPos center, int size) {
+    return new ChunkRect(center.x - size, center.z - size, center.x + size, center.z + size);
+  }
+
+  public int area() {
+    return (maxX - minX + 1) * (maxZ - minZ + 1);
+  }
+
+  public boolean contains(int x, int z) {
+    return x >= minX && x <= maxX && z >= minZ && z <= maxZ;
+  }
+
+  @Override
+  public String toString() {
+    if (minX == maxX && minZ == maxZ) {
+      return "[" + minX + ", " + minZ + "]";
+    }
+    return "[" + minX + ", " + minZ + "] to [" + maxX + ", " + maxZ + "] (" + area() + " chunks)";
+  }
+}
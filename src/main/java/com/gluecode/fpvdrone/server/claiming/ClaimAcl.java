@@ -0,0 +1,92 @@
+package com.gluecode.fpvdrone.server.claiming;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/*
+The collaborators of a claim, as indexes in the player table of ChunkClaim.
+
+Lists are interned: every claim with the same collaborators refers to the same ClaimAcl,
+so an owner who permits the same friends on many chunks stores the list once.
+A list that no claim refers to anymore is dropped from the pool by the garbage collector.
+
+ClaimAcl is immutable. with and without return the interned list with the change.
+Only the server thread interns, but the fields may be read from any thread. See ClaimSnapshot.
+* */
+final class ClaimAcl {
+  private static final WeakHashMap<ClaimAcl, WeakReference<ClaimAcl>> pool = new WeakHashMap<>();
+  static final ClaimAcl EMPTY = intern(new ClaimAcl(new int[0]));
+
+  // Sorted, so membership is a binary search.
+  // A list is a few friends long, while player indexes grow with every player ever seen.
+  final int[] players;
+  private final int hash;
+
+  private ClaimAcl(int[] players) {
+    this.players = players;
+    hash = Arrays.hashCode(players);
+  }
+
+  private static ClaimAcl intern(ClaimAcl acl) {
+    WeakReference<ClaimAcl> ref = pool.get(acl);
+    ClaimAcl interned = ref == null ? null : ref.get();
+    if (interned != null) return interned;
+    pool.put(acl, new WeakReference<>(acl));
+    return acl;
+  }
+
+  /*
+  The number of distinct lists in use.
+  * */
+  static int poolSize() {
+    return pool.size();
+  }
+
+  int size() {
+    return players.length;
+  }
+
+  boolean contains(int player) {
+    return Arrays.binarySearch(players, player) >= 0;
+  }
+
+  /*
+  Returns this if the player is already in the list.
+  * */
+  ClaimAcl with(int player) {
+    int at = Arrays.binarySearch(players, player);
+    if (at >= 0) return this;
+    at = -at - 1;
+    int[] next = new int[players.length + 1];
+    System.arraycopy(players, 0, next, 0, at);
+    next[at] = player;
+    System.arraycopy(players, at, next, at + 1, players.length - at);
+    return intern(new ClaimAcl(next));
+  }
+
+  /*
+  Returns this if the player is not in the list.
+  * */
+  ClaimAcl without(int player) {
+    int at = Arrays.binarySearch(players, player);
+    if (at < 0) return this;
+    int[] next = new int[players.length - 1];
+    System.arraycopy(players, 0, next, 0, at);
+    System.arraycopy(players, at + 1, next, at, players.length - at - 1);
+    return intern(new ClaimAcl(next));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof ClaimAcl)) return false;
+    ClaimAcl other = (ClaimAcl) o;
+    return hash == other.hash && Arrays.equals(players, other.players);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+}
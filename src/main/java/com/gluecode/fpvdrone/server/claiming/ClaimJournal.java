@@ -0,0 +1,255 @@
+package com.gluecode.fpvdrone.server.claiming;
+
+import com.gluecode.fpvdrone.server.Main;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+Append-only log of claim changes, one JSON record per line.
+
+Records are written by a background thread. Everything that is queued while
+the disk is busy is written together and synced once, so a burst of claims
+costs one fsync instead of one full rewrite of the snapshot each.
+
+compact writes a snapshot of all claims and empties the journal.
+The snapshot is queued behind the records it already contains,
+so records queued after it land in the emptied journal.
+While a snapshot is waiting in the queue, newer snapshots replace it instead of queueing another one.
+Snapshots are written to a temporary file that is then renamed over the old one,
+so a crash never leaves a half written snapshot.
+
+On startup the snapshot is loaded and the journal is replayed over it. See ChunkClaim.load.
+If the server stops between writing a snapshot and emptying the journal,
+the journal is replayed over a snapshot that already contains it,
+which gives the same claims because every record sets state instead of toggling it.
+* */
+public class ClaimJournal {
+  private static final Object STOP = new Object();
+
+  private static class PendingSnapshot {
+    ClaimSnapshot snapshot;
+
+    PendingSnapshot(ClaimSnapshot snapshot) {
+      this.snapshot = snapshot;
+    }
+  }
+
+  private static final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+  private static File snapshotFile;
+  private static FileChannel channel;
+  private static Thread writer;
+
+  // Guards pending and the metrics below:
+  private static final Object lock = new Object();
+  // The snapshot that is queued but not started yet.
+  private static PendingSnapshot pending;
+  private static long snapshots = 0;
+  private static long coalesced = 0;
+  private static long lastSnapshotBytes = 0;
+  private static double lastSnapshotMillis = 0;
+  private static double maxSnapshotMillis = 0;
+  private static long syncs = 0;
+  private static long journalBytes = 0;
+
+  /*
+  Returns the records of the journal in order.
+  A line cut short by a crash is skipped.
+  * */
+  public static ArrayList<JSONObject> read(File journalFile) throws IOException {
+    ArrayList<JSONObject> records = new ArrayList<>();
+    if (!journalFile.exists()) return records;
+    try (BufferedReader reader = new BufferedReader(new FileReader(journalFile))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) continue;
+        Object record = JSONValue.parse(line);
+        if (record instanceof JSONObject) {
+          records.add((JSONObject) record);
+        } else {
+          Main.LOGGER.error("Skipping broken claim journal record: " + line);
+        }
+      }
+    }
+    return records;
+  }
+
+  public static void open(File journalFile, File snapshotFile) throws IOException {
+    if (journalFile.getParentFile() != null) {
+      journalFile.getParentFile().mkdirs();
+    }
+    ClaimJournal.snapshotFile = snapshotFile;
+    channel = FileChannel.open(journalFile.toPath(),
+    StandardOpenOption.CREATE,
+    StandardOpenOption.WRITE,
+    StandardOpenOption.APPEND
+    );
+    writer = new Thread(ClaimJournal::write, "ClaimJournal");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public static void append(JSONObject record) {
+    queue.add(record.toJSONString());
+  }
+
+  /*
+  The records are queued as one item, so they are written and synced together.
+  * */
+  public static void append(ArrayList<JSONObject> records) {
+    if (records.isEmpty()) return;
+    StringBuilder lines = new StringBuilder();
+    for (JSONObject record : records) {
+      if (lines.length() > 0) {
+        lines.append('\n');
+      }
+      lines.append(record.toJSONString());
+    }
+    queue.add(lines.toString());
+  }
+
+  static void compact(ClaimSnapshot snapshot) {
+    synchronized (lock) {
+      if (pending != null) {
+        // The newer snapshot also contains every record before the pending one.
+        pending.snapshot = snapshot;
+        coalesced++;
+        return;
+      }
+      pending = new PendingSnapshot(snapshot);
+      queue.add(pending);
+    }
+  }
+
+  public static String describe() {
+    synchronized (lock) {
+      return "snapshots: " + snapshots + " written, " + coalesced + " coalesced\n" +
+      String.format("last snapshot: %d bytes in %.1f ms, %.1f ms max\n", lastSnapshotBytes, lastSnapshotMillis, maxSnapshotMillis) +
+      "journal: " + syncs + " syncs, " + journalBytes + " bytes";
+    }
+  }
+
+  /*
+  Writes everything that is queued and stops the writer.
+  * */
+  public static void close(long timeout, TimeUnit unit) {
+    if (writer == null) return;
+    queue.add(STOP);
+    try {
+      writer.join(unit.toMillis(timeout));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    writer = null;
+  }
+
+  private static void write() {
+    ArrayList<Object> batch = new ArrayList<>();
+    StringBuilder lines = new StringBuilder();
+    while (true) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch);
+
+      boolean stop = false;
+      try {
+        for (Object item : batch) {
+          if (item == STOP) {
+            stop = true;
+            break;
+          } else if (item instanceof PendingSnapshot) {
+            ClaimSnapshot snapshot;
+            synchronized (lock) {
+              snapshot = ((PendingSnapshot) item).snapshot;
+              pending = null;
+            }
+            // The snapshot contains every record before it.
+            sync(lines);
+            writeSnapshot(snapshot);
+            channel.truncate(0);
+          } else {
+            lines.append((String) item).append('\n');
+          }
+        }
+        sync(lines);
+        if (stop) {
+          channel.close();
+          return;
+        }
+      } catch (IOException e) {
+        fail(e);
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private static void sync(StringBuilder lines) throws IOException {
+    if (lines.length() == 0) return;
+    ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    channel.force(false);
+    synchronized (lock) {
+      syncs++;
+      journalBytes += buffer.limit();
+    }
+    lines.setLength(0);
+  }
+
+  private static void writeSnapshot(ClaimSnapshot snapshot) throws IOException {
+    long start = System.nanoTime();
+    byte[] bytes = snapshot.toJSON().toJSONString().getBytes(StandardCharsets.UTF_8);
+
+    Path target = snapshotFile.toPath();
+    Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+    try (FileChannel out = FileChannel.open(temp,
+    StandardOpenOption.CREATE,
+    StandardOpenOption.WRITE,
+    StandardOpenOption.TRUNCATE_EXISTING
+    )) {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      out.force(true);
+    }
+    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+    double millis = (System.nanoTime() - start) / 1000000.0;
+    synchronized (lock) {
+      snapshots++;
+      lastSnapshotBytes = bytes.length;
+      lastSnapshotMillis = millis;
+      maxSnapshotMillis = Math.max(maxSnapshotMillis, millis);
+    }
+    Main.LOGGER.info(String.format("Saved %d chunk claims: %d bytes in %.1f ms.", snapshot.size(), bytes.length, millis));
+  }
+
+  private static void fail(IOException e) {
+    Main.LOGGER.error(e);
+    if (Main.server != null) {
+      // Main.shutdown kicks players, so it runs on the server thread.
+      Main.server.execute(() -> Main.shutdown("Unable to save claims. Server is unsafe."));
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package com.gluecode.fpvdrone.server.claiming;
+
+/*
+A claimed chunk.
+
+Players are stored as their index in the player table of ChunkClaim.
+The collaborators are a shared ClaimAcl, so checking a member is a binary search over a short array
+and equal lists are stored once.
+
+Records are never changed once they are in the map, so a copy of the map
+is a consistent snapshot. See ClaimSnapshot.
+Equal records are merged into one run by ClaimRegions.
+* */
+class ClaimRecord {
+  final int owner;
+  final ClaimAcl collaborators;
+
+  ClaimRecord(int owner) {
+    this(owner, ClaimAcl.EMPTY);
+  }
+
+  private ClaimRecord(int owner, ClaimAcl collaborators) {
+    this.owner = owner;
+    this.collaborators = collaborators;
+  }
+
+  boolean isCollaborator(int player) {
+    return collaborators.contains(player);
+  }
+
+  boolean isMember(int player) {
+    return player == owner || isCollaborator(player);
+  }
+
+  /*
+  Returns this if the player is already a collaborator.
+  * */
+  ClaimRecord withCollaborator(int player) {
+    ClaimAcl next = collaborators.with(player);
+    return next == collaborators ? this : new ClaimRecord(owner, next);
+  }
+
+  /*
+  Returns this if the player is not a collaborator.
+  * */
+  ClaimRecord withoutCollaborator(int player) {
+    ClaimAcl next = collaborators.without(player);
+    return next == collaborators ? this : new ClaimRecord(owner, next);
+  }
+
+  /*
+  The new owner stops being a collaborator.
+  * */
+  ClaimRecord withOwner(int player) {
+    return new ClaimRecord(player, collaborators.without(player));
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof ClaimRecord)) return false;
+    ClaimRecord other = (ClaimRecord) o;
+    // ClaimAcl is interned.
+    return owner == other.owner && collaborators == other.collaborators;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * owner + collaborators.hashCode();
+  }
+}
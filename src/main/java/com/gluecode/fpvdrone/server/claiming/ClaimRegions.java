@@ -0,0 +1,215 @@
+package com.gluecode.fpvdrone.server.claiming;
+
+import com.gluecode.fpvdrone.server.LongObjectMap;
+import net.minecraft.util.math.ChunkPos;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+The claims of one dimension, stored as runs of chunks instead of one entry per chunk.
+
+Each row of chunks (one z) is a sorted list of runs [minX, maxX] that share the same
+ClaimRecord. Neighbouring runs with equal records are merged when a chunk is claimed,
+and a run is split when a chunk in the middle of it changes.
+A builder who claims a large area in one piece ends up with one run per row.
+
+Looking up a chunk is one probe for the row and a binary search over its runs.
+
+Rows are never changed once they are in the map, so a copy of the map
+is a consistent snapshot. See ClaimSnapshot.
+* */
+class ClaimRegions {
+  /*
+  A rectangle of chunks that all have the same claim.
+  * */
+  static class Region {
+    final ChunkRect rect;
+    final ClaimRecord claim;
+
+    Region(ChunkRect rect, ClaimRecord claim) {
+      this.rect = rect;
+      this.claim = claim;
+    }
+  }
+
+  private static class Row {
+    // Sorted by minX. Runs do not overlap.
+    final int[] minX;
+    final int[] maxX;
+    final ClaimRecord[] claims;
+
+    Row(int[] minX, int[] maxX, ClaimRecord[] claims) {
+      this.minX = minX;
+      this.maxX = maxX;
+      this.claims = claims;
+    }
+
+    /*
+    Returns the run that contains x, or -(insertion point) - 1.
+    * */
+    int find(int x) {
+      int low = 0;
+      int high = minX.length - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        if (maxX[mid] < x) {
+          low = mid + 1;
+        } else if (minX[mid] > x) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -low - 1;
+    }
+  }
+
+  // z -> row
+  private final LongObjectMap<Row> rows;
+  private int size = 0;
+  private int runs = 0;
+
+  ClaimRegions() {
+    rows = new LongObjectMap<>();
+  }
+
+  private ClaimRegions(ClaimRegions other) {
+    rows = other.rows.copy();
+    size = other.size;
+    runs = other.runs;
+  }
+
+  /*
+  The number of claimed chunks.
+  * */
+  int size() {
+    return size;
+  }
+
+  int runs() {
+    return runs;
+  }
+
+  ClaimRegions copy() {
+    return new ClaimRegions(this);
+  }
+
+  @Nullable
+  ClaimRecord get(long pos) {
+    return get(ChunkPos.getX(pos), ChunkPos.getZ(pos));
+  }
+
+  @Nullable
+  ClaimRecord get(int x, int z) {
+    Row row = rows.get(z);
+    if (row == null) return null;
+    int i = row.find(x);
+    return i < 0 ? null : row.claims[i];
+  }
+
+  @Nullable
+  ClaimRecord put(long pos, @Nullable ClaimRecord claim) {
+    return put(ChunkPos.getX(pos), ChunkPos.getZ(pos), claim);
+  }
+
+  /*
+  Sets the claim of one chunk. A null claim removes it. Returns the previous claim.
+  * */
+  @Nullable
+  ClaimRecord put(int x, int z, @Nullable ClaimRecord claim) {
+    Row row = rows.get(z);
+    int i = row == null ? -1 : row.find(x);
+    ClaimRecord prevClaim = i < 0 ? null : row.claims[i];
+    if (prevClaim == null && claim == null) return null;
+    if (prevClaim != null && prevClaim.equals(claim)) return prevClaim;
+
+    // Rebuild the row: the runs before x, x itself, then the runs after x.
+    ArrayList<int[]> bounds = new ArrayList<>();
+    ArrayList<ClaimRecord> claims = new ArrayList<>();
+    int n = row == null ? 0 : row.minX.length;
+    int at = i < 0 ? -i - 1 : i;
+    for (int j = 0; j < at; j++) {
+      append(bounds, claims, row.minX[j], row.maxX[j], row.claims[j]);
+    }
+    if (prevClaim != null && row.minX[at] < x) {
+      append(bounds, claims, row.minX[at], x - 1, prevClaim);
+    }
+    if (claim != null) {
+      append(bounds, claims, x, x, claim);
+    }
+    if (prevClaim != null && row.maxX[at] > x) {
+      append(bounds, claims, x + 1, row.maxX[at], prevClaim);
+    }
+    for (int j = prevClaim != null ? at + 1 : at; j < n; j++) {
+      append(bounds, claims, row.minX[j], row.maxX[j], row.claims[j]);
+    }
+
+    runs += bounds.size() - n;
+    size += (claim == null ? 0 : 1) - (prevClaim == null ? 0 : 1);
+    if (bounds.isEmpty()) {
+      rows.remove(z);
+    } else {
+      int[] minX = new int[bounds.size()];
+      int[] maxX = new int[bounds.size()];
+      for (int j = 0; j < minX.length; j++) {
+        minX[j] = bounds.get(j)[0];
+        maxX[j] = bounds.get(j)[1];
+      }
+      rows.put(z, new Row(minX, maxX, claims.toArray(new ClaimRecord[0])));
+    }
+    return prevClaim;
+  }
+
+  /*
+  Adds a run, merging it into the last one if they touch and have the same claim.
+  * */
+  private static void append(ArrayList<int[]> bounds, ArrayList<ClaimRecord> claims, int minX, int maxX, ClaimRecord claim) {
+    int last = bounds.size() - 1;
+    if (last >= 0 && bounds.get(last)[1] + 1 == minX && claims.get(last).equals(claim)) {
+      bounds.get(last)[1] = maxX;
+      return;
+    }
+    bounds.add(new int[]{minX, maxX});
+    claims.add(claim);
+  }
+
+  /*
+  Covers the claims with rectangles by stacking runs that line up in neighbouring rows.
+  * */
+  ArrayList<Region> regions() {
+    long[] zs = new long[rows.size()];
+    int n = 0;
+    for (int i = 0; i < rows.capacity(); i++) {
+      if (rows.valueAt(i) == null) continue;
+      zs[n++] = rows.keyAt(i);
+    }
+    Arrays.sort(zs);
+
+    ArrayList<Region> regions = new ArrayList<>();
+    // minX -> index of the region that ends on the previous row
+    LongObjectMap<Integer> open = new LongObjectMap<>();
+    long prevZ = Long.MIN_VALUE;
+    for (int k = 0; k < n; k++) {
+      int z = (int) zs[k];
+      Row row = rows.get(z);
+      LongObjectMap<Integer> next = new LongObjectMap<>(row.minX.length);
+      for (int j = 0; j < row.minX.length; j++) {
+        Integer index = prevZ == z - 1 ? open.get(row.minX[j]) : null;
+        Region above = index == null ? null : regions.get(index);
+        if (above != null && above.rect.maxX == row.maxX[j] && above.claim.equals(row.claims[j])) {
+          ChunkRect rect = new ChunkRect(above.rect.minX, above.rect.minZ, above.rect.maxX, z);
+          regions.set(index, new Region(rect, above.claim));
+        } else {
+          index = regions.size();
+          regions.add(new Region(new ChunkRect(row.minX[j], z, row.maxX[j], z), row.claims[j]));
+        }
+        next.put(row.minX[j], index);
+      }
+      open = next;
+      prevZ = z;
+    }
+    return regions;
+  }
+}
@@ -0,0 +1,64 @@
+package com.gluecode.fpvdrone.server.claiming;
+
+import net.minecraft.util.RegistryKey;
+import net.minecraft.world.World;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+A copy of all claims that ClaimJournal writes in the background.
+
+Taking it on the server thread only copies the row table of each dimension,
+since rows and ClaimRecord are immutable. Building the JSON happens on the writer thread.
+* */
+class ClaimSnapshot {
+  private final HashMap<RegistryKey<World>, ClaimRegions> claims = new HashMap<>();
+  private final UUID[] players;
+
+  ClaimSnapshot(Map<RegistryKey<World>, ClaimRegions> claims, ArrayList<UUID> players) {
+    for (Map.Entry<RegistryKey<World>, ClaimRegions> entry : claims.entrySet()) {
+      this.claims.put(entry.getKey(), entry.getValue().copy());
+    }
+    this.players = players.toArray(new UUID[0]);
+  }
+
+  int size() {
+    int size = 0;
+    for (ClaimRegions dimensionClaims : claims.values()) {
+      size += dimensionClaims.size();
+    }
+    return size;
+  }
+
+  JSONObject toJSON() {
+    JSONArray regions = new JSONArray();
+    for (Map.Entry<RegistryKey<World>, ClaimRegions> entry : claims.entrySet()) {
+      String dimension = entry.getKey().location().toString();
+      for (ClaimRegions.Region region : entry.getValue().regions()) {
+        JSONObject json = new JSONObject();
+        json.put(ChunkClaim.DIMENSION, dimension);
+        json.put(ChunkClaim.MIN_X, region.rect.minX);
+        json.put(ChunkClaim.MIN_Z, region.rect.minZ);
+        json.put(ChunkClaim.MAX_X, region.rect.maxX);
+        json.put(ChunkClaim.MAX_Z, region.rect.maxZ);
+        json.put(ChunkClaim.OWNER, players[region.claim.owner].toString());
+        JSONArray collaborators = new JSONArray();
+        for (int collaborator : region.claim.collaborators.players) {
+          collaborators.add(players[collaborator].toString());
+        }
+        json.put(ChunkClaim.COLLABORATORS, collaborators);
+        regions.add(json);
+      }
+    }
+
+    JSONObject json = new JSONObject();
+    json.put(ChunkClaim.VERSION, ChunkClaim.SNAPSHOT_VERSION);
+    json.put(ChunkClaim.REGIONS, regions);
+    return json;
+  }
+}
@@ -0,0 +1,335 @@
+package com.gluecode.fpvdrone.server.claiming;
+
+import com.gluecode.fpvdrone.server.Main;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClaimTest {
+  static final String OVERWORLD = "minecraft:overworld";
+  static final String NETHER = "minecraft:the_nether";
+  static final String ALICE = "00000000-0000-0000-0000-00000000000a";
+  static final String BOB = "00000000-0000-0000-0000-00000000000b";
+  static final String CAROL = "00000000-0000-0000-0000-00000000000c";
+  static final String DAVE = "00000000-0000-0000-0000-00000000000d";
+
+  File snapshotFile;
+  File journalFile;
+
+  @BeforeAll
+  static void initAll() {
+    Main.isUnitTest = true;
+  }
+
+  @AfterEach
+  void tearDown() {
+    ChunkClaim.unload();
+  }
+
+  void createFiles() throws Exception {
+    File dir = Files.createTempDirectory("ClaimTest").toFile();
+    snapshotFile = new File(dir, "claims.json");
+    journalFile = new File(dir, "claims.journal");
+  }
+
+  String record(String op, int x, int z, String player) {
+    JSONObject record = new JSONObject();
+    record.put("op", op);
+    record.put("chunk", "[" + OVERWORLD + ", " + x + ", " + z + "]");
+    record.put("player", player);
+    return record.toJSONString();
+  }
+
+  void writeFile(File file, String text) throws Exception {
+    try (FileWriter writer = new FileWriter(file)) {
+      writer.write(text);
+    }
+  }
+
+  JSONObject readSnapshot() throws Exception {
+    try (FileReader reader = new FileReader(snapshotFile)) {
+      return (JSONObject) JSONValue.parse(reader);
+    }
+  }
+
+  void assertClaim(String dimension, int x, int z, String owner, String... collaborators) {
+    assertEquals(owner, ChunkClaim.getOwner(dimension, x, z));
+    if (owner == null) return;
+    assertEquals(
+      new HashSet<>(Arrays.asList(collaborators)),
+      new HashSet<>(ChunkClaim.getCollaborators(dimension, x, z))
+    );
+  }
+
+  void reload() {
+    ChunkClaim.unload();
+    ChunkClaim.load(snapshotFile, journalFile);
+  }
+
+  void assertSequenceState() {
+    assertClaim(OVERWORLD, 0, 0, DAVE);
+    assertClaim(OVERWORLD, 1, 0, ALICE, BOB);
+    assertClaim(OVERWORLD, 2, 0, ALICE, CAROL);
+    assertClaim(OVERWORLD, 3, 0, null);
+    assertEquals(2, ChunkClaim.getClaimCount(ALICE));
+    assertEquals(1, ChunkClaim.getClaimCount(DAVE));
+    assertEquals(0, ChunkClaim.getClaimCount(BOB));
+  }
+
+  @Test
+  void replayOverSnapshot() throws Exception {
+    createFiles();
+    String journal = String.join("\n",
+      record("claim", 0, 0, ALICE),
+      record("claim", 1, 0, ALICE),
+      record("claim", 2, 0, ALICE),
+      record("permit", 1, 0, BOB),
+      record("permit", 2, 0, BOB),
+      record("permit", 2, 0, CAROL),
+      record("unpermit", 2, 0, BOB),
+      record("transfer", 0, 0, DAVE),
+      record("claim", 3, 0, ALICE),
+      record("unclaim", 3, 0, ALICE)
+    ) + "\n";
+    writeFile(journalFile, journal);
+
+    ChunkClaim.load(snapshotFile, journalFile);
+    assertSequenceState();
+
+    // Compacting writes the snapshot and empties the journal.
+    ChunkClaim.close();
+    assertTrue(snapshotFile.exists());
+    assertEquals(0, journalFile.length());
+    reload();
+    assertSequenceState();
+
+    // A crash between writing the snapshot and emptying the journal replays the records again.
+    ChunkClaim.close();
+    writeFile(journalFile, journal);
+    reload();
+    assertSequenceState();
+  }
+
+  @Test
+  void tornJournalLine() throws Exception {
+    createFiles();
+    writeFile(journalFile,
+      record("claim", 0, 0, ALICE) + "\n" +
+      record("permit", 0, 0, BOB) + "\n" +
+      "{\"op\":\"claim\",\"chunk\":\"[" + OVERWORLD + ", 1"
+    );
+
+    ChunkClaim.load(snapshotFile, journalFile);
+    assertClaim(OVERWORLD, 0, 0, ALICE, BOB);
+    assertClaim(OVERWORLD, 1, 0, null);
+    assertEquals(1, ChunkClaim.getClaimCount(ALICE));
+
+    ChunkClaim.close();
+    assertEquals(0, journalFile.length());
+    reload();
+    assertClaim(OVERWORLD, 0, 0, ALICE, BOB);
+    assertClaim(OVERWORLD, 1, 0, null);
+  }
+
+  @Test
+  void legacySnapshot() throws Exception {
+    createFiles();
+    JSONObject legacy = new JSONObject();
+    legacy.put("[" + OVERWORLD + ", 0, 0]", legacyClaim(ALICE, BOB));
+    legacy.put("[" + OVERWORLD + ", 1, 0]", legacyClaim(ALICE, BOB));
+    legacy.put("[" + OVERWORLD + ", 0, 1]", legacyClaim(ALICE));
+    legacy.put("[" + NETHER + ", 5, 5]", legacyClaim(CAROL));
+    writeFile(snapshotFile, legacy.toJSONString());
+
+    ChunkClaim.load(snapshotFile, journalFile);
+    assertLegacyState();
+
+    ChunkClaim.close();
+    JSONObject snapshot = readSnapshot();
+    assertEquals(ChunkClaim.SNAPSHOT_VERSION, ((Number) snapshot.get(ChunkClaim.VERSION)).intValue());
+    assertFalse(snapshot.containsKey("[" + OVERWORLD + ", 0, 0]"));
+    // Two rows of Alice's claim differ, and the nether claim is on its own.
+    JSONArray regions = (JSONArray) snapshot.get(ChunkClaim.REGIONS);
+    assertEquals(3, regions.size());
+
+    reload();
+    assertLegacyState();
+  }
+
+  JSONObject legacyClaim(String owner, String... collaborators) {
+    JSONObject claim = new JSONObject();
+    claim.put(ChunkClaim.OWNER, owner);
+    JSONArray list = new JSONArray();
+    list.addAll(Arrays.asList(collaborators));
+    claim.put(ChunkClaim.COLLABORATORS, list);
+    return claim;
+  }
+
+  void assertLegacyState() {
+    assertClaim(OVERWORLD, 0, 0, ALICE, BOB);
+    assertClaim(OVERWORLD, 1, 0, ALICE, BOB);
+    assertClaim(OVERWORLD, 0, 1, ALICE);
+    assertClaim(OVERWORLD, 1, 1, null);
+    assertClaim(NETHER, 5, 5, CAROL);
+    assertClaim(NETHER, 0, 0, null);
+    assertEquals(3, ChunkClaim.getClaimCount(ALICE));
+    assertEquals(1, ChunkClaim.getClaimCount(CAROL));
+  }
+
+  void claimRow(ClaimRegions regions, int minX, int maxX, int z, ClaimRecord claim) {
+    for (int x = minX; x <= maxX; x++) {
+      regions.put(x, z, claim);
+    }
+  }
+
+  void assertRect(ClaimRegions.Region region, int minX, int minZ, int maxX, int maxZ) {
+    assertEquals(minX, region.rect.minX);
+    assertEquals(minZ, region.rect.minZ);
+    assertEquals(maxX, region.rect.maxX);
+    assertEquals(maxZ, region.rect.maxZ);
+  }
+
+  @Test
+  void splitRun() {
+    ClaimRecord alice = new ClaimRecord(0);
+    ClaimRecord bob = new ClaimRecord(1);
+    ClaimRegions regions = new ClaimRegions();
+    claimRow(regions, 0, 4, 0, alice);
+    assertEquals(5, regions.size());
+    assertEquals(1, regions.runs());
+
+    assertEquals(alice, regions.put(2, 0, bob));
+    assertEquals(5, regions.size());
+    assertEquals(3, regions.runs());
+    assertEquals(alice, regions.get(1, 0));
+    assertEquals(bob, regions.get(2, 0));
+    assertEquals(alice, regions.get(3, 0));
+
+    // Giving the chunk back joins the three runs again.
+    assertEquals(bob, regions.put(2, 0, alice));
+    assertEquals(1, regions.runs());
+  }
+
+  @Test
+  void mergeEqualRuns() {
+    ClaimRecord alice = new ClaimRecord(0);
+    ClaimRecord shared = alice.withCollaborator(1);
+    ClaimRegions regions = new ClaimRegions();
+    claimRow(regions, 0, 1, 0, alice);
+    claimRow(regions, 3, 4, 0, alice);
+    assertEquals(4, regions.size());
+    assertEquals(2, regions.runs());
+
+    // Same owner but other collaborators does not merge.
+    assertNull(regions.put(2, 0, shared));
+    assertEquals(3, regions.runs());
+
+    assertEquals(shared, regions.put(2, 0, alice));
+    assertEquals(5, regions.size());
+    assertEquals(1, regions.runs());
+    // Equal records are interned, so a rebuilt record merges too.
+    assertEquals(alice, regions.put(2, 0, shared.withoutCollaborator(1)));
+    assertEquals(1, regions.runs());
+  }
+
+  @Test
+  void unclaimEdgeAndMiddle() {
+    ClaimRecord alice = new ClaimRecord(0);
+    ClaimRegions regions = new ClaimRegions();
+    claimRow(regions, 0, 4, 0, alice);
+
+    assertEquals(alice, regions.put(0, 0, null));
+    assertEquals(alice, regions.put(4, 0, null));
+    assertNull(regions.get(0, 0));
+    assertNull(regions.get(4, 0));
+    assertEquals(3, regions.size());
+    assertEquals(1, regions.runs());
+
+    assertEquals(alice, regions.put(2, 0, null));
+    assertEquals(2, regions.size());
+    assertEquals(2, regions.runs());
+    assertEquals(alice, regions.get(1, 0));
+    assertEquals(alice, regions.get(3, 0));
+
+    // Unclaiming a free chunk changes nothing.
+    assertNull(regions.put(2, 0, null));
+    assertEquals(2, regions.runs());
+
+    regions.put(1, 0, null);
+    regions.put(3, 0, null);
+    assertEquals(0, regions.size());
+    assertEquals(0, regions.runs());
+    assertTrue(regions.regions().isEmpty());
+  }
+
+  @Test
+  void runBookkeeping() {
+    ClaimRecord alice = new ClaimRecord(0);
+    ClaimRecord bob = new ClaimRecord(1);
+    ClaimRegions regions = new ClaimRegions();
+    claimRow(regions, -2, 2, 0, alice);
+    claimRow(regions, -2, 2, 1, alice);
+    claimRow(regions, 5, 6, 1, bob);
+    assertEquals(12, regions.size());
+    assertEquals(3, regions.runs());
+
+    // A copy keeps its rows when the original changes.
+    ClaimRegions copy = regions.copy();
+    regions.put(0, 0, null);
+    regions.put(5, 1, alice);
+    assertEquals(11, regions.size());
+    assertEquals(5, regions.runs());
+    assertEquals(12, copy.size());
+    assertEquals(3, copy.runs());
+    assertEquals(alice, copy.get(0, 0));
+    assertEquals(bob, copy.get(5, 1));
+  }
+
+  @Test
+  void regionsOfLShape() {
+    ClaimRecord alice = new ClaimRecord(0);
+    ClaimRegions regions = new ClaimRegions();
+    claimRow(regions, 0, 3, 0, alice);
+    for (int z = 1; z <= 3; z++) {
+      regions.put(0, z, alice);
+    }
+
+    ArrayList<ClaimRegions.Region> result = regions.regions();
+    assertEquals(2, result.size());
+    assertRect(result.get(0), 0, 0, 3, 0);
+    assertRect(result.get(1), 0, 1, 0, 3);
+    assertEquals(alice, result.get(0).claim);
+    assertEquals(alice, result.get(1).claim);
+  }
+
+  @Test
+  void regionsOfMixedAcl() {
+    ClaimRecord alice = new ClaimRecord(0);
+    ClaimRecord shared = alice.withCollaborator(1);
+    ClaimRegions regions = new ClaimRegions();
+    for (int z = 0; z <= 2; z++) {
+      claimRow(regions, 0, 1, z, alice);
+      regions.put(2, z, shared);
+    }
+
+    ArrayList<ClaimRegions.Region> result = regions.regions();
+    assertEquals(2, result.size());
+    assertRect(result.get(0), 0, 0, 1, 2);
+    assertRect(result.get(1), 2, 0, 2, 2);
+    assertEquals(alice, result.get(0).claim);
+    assertEquals(shared, result.get(1).claim);
+  }
+}
@@ -0,0 +1,67 @@
+package com.gluecode.fpvdrone.server.claiming;
+
+import com.gluecode.fpvdrone.server.LongObjectMap;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+
+import java.util.List;
+
+/*
+Removes the blocks of an explosion that lie in chunks the source may not edit.
+
+An explosion of thousands of blocks only touches a few chunks, so the permission
+is decided once per chunk and the block list is filtered in place.
+* */
+public class ExplosionFilter {
+  @FunctionalInterface
+  public interface ChunkPermission {
+    boolean allows(int chunkX, int chunkZ);
+  }
+
+  /*
+  Returns the number of blocks that were removed.
+  * */
+  public static int filter(List<BlockPos> toBlow, ChunkPermission permission) {
+    // chunk -> permission, for the chunks seen so far.
+    LongObjectMap<Boolean> decided = new LongObjectMap<>();
+    // Neighbouring blocks are usually in the same chunk:
+    int lastX = 0;
+    int lastZ = 0;
+    boolean lastAllowed = false;
+    boolean hasLast = false;
+
+    int size = toBlow.size();
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      BlockPos pos = toBlow.get(i);
+      int chunkX = pos.getX() >> 4;
+      int chunkZ = pos.getZ() >> 4;
+      boolean allowed;
+      if (hasLast && chunkX == lastX && chunkZ == lastZ) {
+        allowed = lastAllowed;
+      } else {
+        long chunk = ChunkPos.asLong(chunkX, chunkZ);
+        Boolean known = decided.get(chunk);
+        if (known == null) {
+          known = permission.allows(chunkX, chunkZ);
+          decided.put(chunk, known);
+        }
+        allowed = known;
+        lastX = chunkX;
+        lastZ = chunkZ;
+        lastAllowed = allowed;
+        hasLast = true;
+      }
+      if (allowed) {
+        if (kept != i) {
+          toBlow.set(kept, pos);
+        }
+        kept++;
+      }
+    }
+    if (kept < size) {
+      toBlow.subList(kept, size).clear();
+    }
+    return size - kept;
+  }
+}
@@ -0,0 +1,42 @@
+package com.gluecode.fpvdrone.server.claiming;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/*
+The chunks a player owns and the chunks they are permitted in,
+so questions about one player do not scan every claim.
+ChunkClaim keeps these in step with the claim maps.
+
+Owned chunks are kept as runs, like the claim maps, so a large claim costs a few runs
+instead of an entry per chunk. See ClaimRegions.
+Permission is kept per owner: the chunks are found by walking the owner's runs,
+so being permitted on many chunks of one owner is one entry.
+* */
+class PlayerClaims {
+  // DimensionRegistry id -> the claims the player owns, or null if they never owned any there.
+  final ArrayList<ClaimRegions> owned = new ArrayList<>();
+  // Owners who listed the player as a collaborator.
+  // Only ChunkClaim.list drops an owner, once it finds no claim that still lists the player.
+  final HashSet<Integer> permittedBy = new HashSet<>();
+  int ownedCount = 0;
+
+  /*
+  Sets the claim of an owned chunk. A null claim removes it.
+  * */
+  void putOwned(int dimension, long pos, @Nullable ClaimRecord claim) {
+    while (owned.size() <= dimension) {
+      owned.add(null);
+    }
+    ClaimRegions regions = owned.get(dimension);
+    if (regions == null) {
+      if (claim == null) return;
+      regions = new ClaimRegions();
+      owned.set(dimension, regions);
+    }
+    int before = regions.size();
+    regions.put(pos, claim);
+    ownedCount += regions.size() - before;
+  }
+}
@@ -1,24 +1,34 @@
 package com.gluecode.fpvdrone.server.racing;
 
+import com.gluecode.fpvdrone.server.DimensionRegistry;
+import com.gluecode.fpvdrone.server.LongObjectMap;
 import net.minecraft.util.Direction;
 import net.minecraft.util.math.BlockPos;
 
 import javax.annotation.Nullable;
 
+/*
+Hashed and compared by the dimension id and the packed position,
+so using it as a map key does not hash the dimension name.
+* */
 public class BlockKey {
-  public String dimension;
-  public BlockPos pos;
+  public final String dimension;
+  public final BlockPos pos;
+  public final int dimensionId; // See DimensionRegistry.
+  private final long packedPos;
 
   @Nullable
   public Direction face;
 
   public BlockKey(String dimension, BlockPos pos) {
-    this.dimension = dimension;
+    this.dimensionId = DimensionRegistry.id(dimension);
+    this.dimension = DimensionRegistry.name(this.dimensionId);
     this.pos = pos;
+    this.packedPos = pos.asLong();
   }
 
   public int hashCode() {
-    return this.dimension.hashCode() + this.pos.hashCode();
+    return LongObjectMap.mix(this.packedPos) * 31 + this.dimensionId;
   }
 
   public boolean equals(Object o) {
@@ -28,8 +38,8 @@ public class BlockKey {
     if (this == o) {
       return true;
     }
-    return this.dimension.equals(((BlockKey) o).dimension) &&
-    this.pos.equals(((BlockKey) o).pos);
+    return this.dimensionId == ((BlockKey) o).dimensionId &&
+    this.packedPos == ((BlockKey) o).packedPos;
   }
 
   public String toString() {
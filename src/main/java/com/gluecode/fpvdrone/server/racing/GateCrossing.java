@@ -0,0 +1,153 @@
+package com.gluecode.fpvdrone.server.racing;
+
+import com.jme3.math.FastMath;
+import com.jme3.math.Vector3f;
+
+/*
+The crossing plane of a loaded gate, precomputed once by RaceTrack.loadGates.
+
+RaceEngine.tick runs for every racer on every tick, so the segment-versus-gate
+test here is plain float and int math. Nothing is allocated; the intersection is
+written into a vector supplied by the caller.
+
+The math is the same as the jME3 Ray/Plane path it replaces:
+  * The plane goes through the middle of the gate's blocks: origin + |normal| * 0.5.
+  * The player must have traveled at least as far as the plane (with a small negative bias).
+  * The block containing the intersection must be between rowMin and rowMax of its row.
+* */
+public class GateCrossing {
+  // Negative bias needed for almost reaching gate and floating point errors.
+  private static final float REACH_BIAS = -(0.001f * 0.001f);
+
+  // plane: normal . p = constant
+  public final float normalX;
+  public final float normalY;
+  public final float normalZ;
+  public final float constant;
+
+  // In-plane basis. Gates are axis aligned so these are unit axes.
+  public final int rightX;
+  public final int rightY;
+  public final int rightZ;
+  public final int upX;
+  public final int upY;
+  public final int upZ;
+
+  // AABB
+  public final int minX;
+  public final int minY;
+  public final int minZ;
+  public final int maxX;
+  public final int maxY;
+  public final int maxZ;
+
+  // Row/column lookup:
+  public final int[] rowMin;
+  public final int[] rowMax;
+
+  public GateCrossing(RaceGate gate) {
+    this.normalX = gate.normal.x;
+    this.normalY = gate.normal.y;
+    this.normalZ = gate.normal.z;
+    float planeX = gate.origin.getX() + FastMath.abs(normalX) * 0.5f;
+    float planeY = gate.origin.getY() + FastMath.abs(normalY) * 0.5f;
+    float planeZ = gate.origin.getZ() + FastMath.abs(normalZ) * 0.5f;
+    this.constant = normalX * planeX + normalY * planeY + normalZ * planeZ;
+
+    this.rightX = Math.round(gate.right.x);
+    this.rightY = Math.round(gate.right.y);
+    this.rightZ = Math.round(gate.right.z);
+    this.upX = Math.round(gate.up.x);
+    this.upY = Math.round(gate.up.y);
+    this.upZ = Math.round(gate.up.z);
+
+    this.minX = gate.origin.getX();
+    this.minY = gate.origin.getY();
+    this.minZ = gate.origin.getZ();
+    this.maxX = gate.farthest.getX();
+    this.maxY = gate.farthest.getY();
+    this.maxZ = gate.farthest.getZ();
+
+    this.rowMin = gate.rowMin;
+    this.rowMax = gate.rowMax;
+  }
+
+  /*
+  Returns true if the segment from prev to next reaches the gate plane inside the gate.
+  When true, hitOut is set to the intersection point.
+  * */
+  public boolean test(float prevX, float prevY, float prevZ, float nextX, float nextY, float nextZ, Vector3f hitOut) {
+    float dx = nextX - prevX;
+    float dy = nextY - prevY;
+    float dz = nextZ - prevZ;
+    float travelDistance = dx * dx + dy * dy + dz * dz;
+    if (travelDistance == 0f) {
+      // No movement.
+      return false;
+    }
+
+    // Ray from prev along the normalized travel direction:
+    float inverseLength = 1f / FastMath.sqrt(travelDistance);
+    float dirX = dx * inverseLength;
+    float dirY = dy * inverseLength;
+    float dirZ = dz * inverseLength;
+
+    float denominator = normalX * dirX + normalY * dirY + normalZ * dirZ;
+    if (denominator > -FastMath.FLT_EPSILON && denominator < FastMath.FLT_EPSILON) {
+      // Traveling parallel to the plane.
+      return false;
+    }
+    float numerator = constant - (normalX * prevX + normalY * prevY + normalZ * prevZ);
+    float ratio = numerator / denominator;
+    if (ratio < FastMath.FLT_EPSILON) {
+      // The plane is behind.
+      return false;
+    }
+
+    // Check if player reached or crossed gate:
+    float minDistanceNeeded = ratio * ratio;
+    if (!(travelDistance - minDistanceNeeded > REACH_BIAS)) {
+      return false;
+    }
+
+    float hitX = prevX + dirX * ratio;
+    float hitY = prevY + dirY * ratio;
+    float hitZ = prevZ + dirZ * ratio;
+
+    // Determine the block they were in when crossing:
+    boolean pass = containsBlock(
+    (int) FastMath.floor(hitX),
+    (int) FastMath.floor(hitY),
+    (int) FastMath.floor(hitZ)
+    );
+    if (pass) {
+      hitOut.set(hitX, hitY, hitZ);
+    }
+    return pass;
+  }
+
+  /*
+  Same as RaceNavigate.isGateBlock without the dimension check.
+  * */
+  public boolean containsBlock(int x, int y, int z) {
+    // check if the block is between origin and farthest (inclusive for lag)
+    if (x < minX || maxX < x || y < minY || maxY < y || z < minZ || maxZ < z) {
+      return false;
+    }
+
+    int localX = x - minX;
+    int localY = y - minY;
+    int localZ = z - minZ;
+    int row = localX * upX + localY * upY + localZ * upZ;
+    int column = localX * rightX + localY * rightY + localZ * rightZ;
+    if (row < 0 || row >= rowMin.length) {
+      return false;
+    }
+
+    // pass will allow the crossing point to be inside the solid edge blocks
+    // in order to give leeway for:
+    //   * laggy connection
+    //   * non-full size edge blocks, like stairs, gates, poles, etc..
+    return rowMin[row] <= column && column <= rowMax[row];
+  }
+}
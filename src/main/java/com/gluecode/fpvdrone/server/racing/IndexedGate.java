@@ -0,0 +1,65 @@
+package com.gluecode.fpvdrone.server.racing;
+
+import com.gluecode.fpvdrone.server.CompactId;
+import net.minecraft.util.math.BlockPos;
+
+/*
+The AABB of a gate as it is stored in RaceGateIndex.
+
+The edge of a gate is traced from the blocks in its AABB and one block around it in its plane,
+so a change in that margin can change the gate too.
+* */
+public class IndexedGate {
+  public CompactId raceTrackId;
+  public CompactId raceGateId;
+  public int minX;
+  public int minY;
+  public int minZ;
+  public int maxX;
+  public int maxY;
+  public int maxZ;
+  // 1 on the in-plane axes, 0 on the normal axis:
+  public int marginX;
+  public int marginY;
+  public int marginZ;
+  // A block near the gate changed since its geometry was stored:
+  public boolean changed;
+
+  public IndexedGate(CompactId raceTrackId, CompactId raceGateId, BlockPos origin, BlockPos farthest) {
+    this.raceTrackId = raceTrackId;
+    this.raceGateId = raceGateId;
+    this.minX = origin.getX();
+    this.minY = origin.getY();
+    this.minZ = origin.getZ();
+    this.maxX = farthest.getX();
+    this.maxY = farthest.getY();
+    this.maxZ = farthest.getZ();
+    this.marginX = minX == maxX ? 0 : 1;
+    this.marginY = minY == maxY ? 0 : 1;
+    this.marginZ = minZ == maxZ ? 0 : 1;
+  }
+
+  /*
+  Same bounds check as RaceGate.getGateByBlock (inclusive on both ends).
+  * */
+  public boolean contains(int x, int y, int z) {
+    return minX <= x && x <= maxX &&
+    minY <= y && y <= maxY &&
+    minZ <= z && z <= maxZ;
+  }
+
+  /*
+  True if a change at the block can change the geometry of the gate.
+  * */
+  public boolean isNear(int x, int y, int z) {
+    return minX - marginX <= x && x <= maxX + marginX &&
+    minY - marginY <= y && y <= maxY + marginY &&
+    minZ - marginZ <= z && z <= maxZ + marginZ;
+  }
+
+  public boolean intersects(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+    return this.minX <= maxX && minX <= this.maxX &&
+    this.minY <= maxY && minY <= this.maxY &&
+    this.minZ <= maxZ && minZ <= this.maxZ;
+  }
+}
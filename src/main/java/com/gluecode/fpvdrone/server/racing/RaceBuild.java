@@ -3,6 +3,7 @@ package com.gluecode.fpvdrone.server.racing;
 import com.gluecode.fpvdrone.network.PacketHandler;
 import com.gluecode.fpvdrone.network.SetBuildModePacket;
 import com.gluecode.fpvdrone.race.SerialRaceGate;
+import com.gluecode.fpvdrone.server.CompactId;
 import com.gluecode.fpvdrone.server.Main;
 import com.gluecode.fpvdrone.server.MySQLHelper;
 import com.google.common.collect.Maps;
@@ -28,43 +29,32 @@ import static java.util.concurrent.CompletableFuture.completedFuture;
 public class RaceBuild {
   public static final int MAX_GATES_PER_TRACK = 150;
 
-  private static Map<String, Boolean> isBuildingMode = Maps.newConcurrentMap();
-  public static Map<String, BlockKey> startingBlock = Maps.newConcurrentMap();
-  public static Map<String, RaceGate[]> gateChoices = Maps.newConcurrentMap();
-  public static Map<String, ArrayList<RaceGate>> completedGates = Maps.newConcurrentMap();
-  public static Map<String, String> trackName = Maps.newConcurrentMap();
+  private static Map<CompactId, Boolean> isBuildingMode = Maps.newConcurrentMap();
+  public static Map<CompactId, BlockKey> startingBlock = Maps.newConcurrentMap();
+  public static Map<CompactId, RaceGate[]> gateChoices = Maps.newConcurrentMap();
+  public static Map<CompactId, ArrayList<RaceGate>> completedGates = Maps.newConcurrentMap();
+  public static Map<CompactId, String> trackName = Maps.newConcurrentMap();
 
   public static void load() {
     RaceDatabase.load();
   }
 
   public static @Nullable
-  String getId(@Nullable Entity entity) {
+  CompactId getId(@Nullable Entity entity) {
     if (entity == null) {
       return null;
     }
-    return entity.getUUID().toString().replaceAll("-", "").toUpperCase();
+    return CompactId.of(entity.getUUID());
   }
 
   public static @Nullable
-  UUID getUUID(@Nullable String id) {
+  UUID getUUID(@Nullable CompactId id) {
     if (id == null) return null;
-    // f3dc0039-b5c5-4f3d-9ac5-55e873a4b6f2
-    // F3DC0039 B5C5 4F3D 9AC5 55E873A4B6F2
-    String dashed = id.substring(0, 8) +
-    "-" +
-    id.substring(8, 12) +
-    "-" +
-    id.substring(12, 16) +
-    "-" +
-    id.substring(16, 20) +
-    "-" +
-    id.substring(20);
-    return UUID.fromString(dashed);
+    return id.toUUID();
   }
 
   public static @Nullable
-  ServerPlayerEntity getEntityFromId(@Nullable String id) {
+  ServerPlayerEntity getEntityFromId(@Nullable CompactId id) {
     UUID uuid = getUUID(id);
     if (uuid == null) return null;
     if (Main.server == null) return null;
@@ -75,7 +65,7 @@ public class RaceBuild {
   Check if a user is the owner of the track which starts at `pos`.
   * */
   public static @NotNull
-  CompletableFuture<Boolean> checkOwner(String userId, String dimension, BlockPos pos) throws Exception {
+  CompletableFuture<Boolean> checkOwner(CompactId userId, String dimension, BlockPos pos) throws Exception {
     RaceTrack track = await(RaceTrack.getTrack(dimension, pos));
     if (track == null) {
       return completedFuture(false);
@@ -86,12 +76,12 @@ public class RaceBuild {
   /*
   Check if a user is in building mode
   * */
-  public static boolean checkBuildingMode(String userId) {
+  public static boolean checkBuildingMode(CompactId userId) {
     Boolean buildingMode = isBuildingMode.get(userId);
     return buildingMode != null && buildingMode;
   }
 
-  public static void startTrack(String userId, String dimension, BlockPos pos, @Nullable Entity entity) {
+  public static void startTrack(CompactId userId, String dimension, BlockPos pos, @Nullable Entity entity) {
     BlockKey startKey = new BlockKey(dimension, pos);
     boolean isBuilding = checkBuildingMode(userId);
     if (isBuilding) return; // todo: feedback
@@ -114,7 +104,7 @@ public class RaceBuild {
     }
   }
 
-  public static void exitBuildingMode(String userId, @Nullable Entity entity) {
+  public static void exitBuildingMode(CompactId userId, @Nullable Entity entity) {
     // Allow this run even if the user is not in building mode.
     // It doesn't hurt anything, and presents an opportunity to clear memory.
     isBuildingMode.remove(userId);
@@ -133,7 +123,7 @@ public class RaceBuild {
     }
   }
 
-  public static CompletableFuture<Void> setTrackName(String userId, String name, @Nullable Entity entity) throws RaceGateException {
+  public static CompletableFuture<Void> setTrackName(CompactId userId, String name, @Nullable Entity entity) throws RaceGateException {
     if (name.equals("")) {
       String message = "Track name cannot be blank.";
       Main.sendErrorMessage(entity, message);
@@ -169,7 +159,7 @@ public class RaceBuild {
   @param entity - This is null during unit testing.
   @param world - Null during unit testing.
   * */
-  public static CompletableFuture<Void> addBlock(String userId, String dimension, BlockPos pos, Direction testFace, BiPredicate<String, BlockPos> checkSolid, @Nullable Entity entity) throws Exception {
+  public static CompletableFuture<Void> addBlock(CompactId userId, String dimension, BlockPos pos, Direction testFace, BiPredicate<String, BlockPos> checkSolid, @Nullable Entity entity) throws Exception {
     if (testFace == null) return completedFuture(null);
 
     BlockKey blockKey = new BlockKey(dimension, pos);
@@ -330,7 +320,7 @@ public class RaceBuild {
   This is a helper function which should be called from forge code and
   then the forge code should call setTrackName.
   * */
-  public static String getTrackName(String userId, World world, Entity entity) {
+  public static String getTrackName(CompactId userId, World world, Entity entity) {
     BlockKey startKey = startingBlock.get(userId);
     if (startKey == null) return null;
 
@@ -365,7 +355,7 @@ public class RaceBuild {
     return null;
   }
 
-  public static CompletableFuture<Void> completeTrack(String userId, @Nullable Entity entity) throws Exception {
+  public static CompletableFuture<Void> completeTrack(CompactId userId, @Nullable Entity entity) throws Exception {
     boolean isBuilding = checkBuildingMode(userId);
     if (!isBuilding) return completedFuture(null);
     BlockKey startKey = startingBlock.get(userId);
@@ -387,28 +377,24 @@ public class RaceBuild {
     // Building modes must be exited before any await statement in order to avoid double submission.
     exitBuildingMode(userId, entity);
 
-    // store track in DB.
-    String raceTrackId = await(RaceTrack.insertTrack(userId,
+    // store track and gates in DB.
+    CompactId raceTrackId = await(RaceTrack.insertTrack(userId,
     name,
     startKey.dimension,
-    startKey.pos
+    startKey.pos,
+    currentCompletedGates
     ));
 
-    // store gates in DB.
-    for (int i = 0; i < currentCompletedGates.size(); i++) {
-      // todo: batch insert
-      await(RaceGate.insertGate(raceTrackId, i, currentCompletedGates.get(i)));
-    }
-
     Main.sendSuccessMessage(entity, "Track '" + name + "' successfully built!");
     if (entity != null) {
-      String playerName = Main.getPlayerNameFromUuid(entity.getUUID().toString());
-      Main.sendDiscord(":checkered_flag: " + playerName + " built a track!" + "\nhttps://minecraftfpv.com/track/" + raceTrackId, Main.discordRaces);
+      Main.resolvePlayerName(entity.getUUID().toString()).thenAccept((playerName) -> {
+        Main.sendDiscord(":checkered_flag: " + playerName + " built a track!" + "\nhttps://minecraftfpv.com/track/" + raceTrackId, Main.discordRaces);
+      });
     }
     return completedFuture(null);
   }
 
-  public static CompletableFuture<Void> removeTrack(String userId, String dimension, BlockPos pos, @Nullable Entity entity) throws Exception {
+  public static CompletableFuture<Void> removeTrack(CompactId userId, String dimension, BlockPos pos, @Nullable Entity entity) throws Exception {
     // Only exitBuildingMode if the broken block is the currently creating track.
     boolean isBuildingMode = RaceBuild.checkBuildingMode(userId);
     BlockKey startingBlock = RaceBuild.startingBlock.get(userId);
@@ -426,8 +412,7 @@ public class RaceBuild {
 //      return completedFuture(null);
 //    };
 
-    await(RaceTrack.softDelete(dimension, pos));
-    await(RaceGate.softDelete(track.raceTrackId));
+    await(RaceTrack.softDelete(track));
 
     // Remove the breaker from the race first:
     RaceNavigate.exitRacingMode(userId, entity, null);
@@ -1,5 +1,6 @@
 package com.gluecode.fpvdrone.server.racing;
 
+import com.gluecode.fpvdrone.server.CompactId;
 import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.builder.LiteralArgumentBuilder;
@@ -43,7 +44,7 @@ public class RaceCommand {
 
   private static int setName(CommandContext<CommandSource> context) throws CommandSyntaxException {
     ServerPlayerEntity caller = context.getSource().getPlayerOrException();
-    String userId = RaceBuild.getId(caller);
+    CompactId userId = RaceBuild.getId(caller);
 
     if (!RaceBuild.checkBuildingMode(userId)) {
       throw (new SimpleCommandExceptionType(new StringTextComponent(
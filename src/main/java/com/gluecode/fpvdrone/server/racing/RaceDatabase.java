@@ -20,10 +20,21 @@ public class RaceDatabase {
       Main.version = version;
       MySQLHelper.load();
       ensureTables();
+      loadIndexes();
       loaded = true;
     }
   }
 
+  public static void loadIndexes() {
+    // Index loading is purposely blocking.
+    try {
+      RaceGateIndex.load();
+    } catch (Exception e) {
+      Main.LOGGER.error(e);
+      Main.shutdown("Unable to load race index.");
+    }
+  }
+
   public static void ensureTables() {
     /*
     To make a UTF-8 table, use: DEFAULT CHARACTER SET utf8 COLLATE utf8_unicode_ci
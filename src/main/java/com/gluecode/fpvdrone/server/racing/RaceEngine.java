@@ -0,0 +1,229 @@
+package com.gluecode.fpvdrone.server.racing;
+
+import com.gluecode.fpvdrone.server.CompactId;
+import com.gluecode.fpvdrone.server.DimensionRegistry;
+import com.jme3.math.Vector3f;
+import net.minecraft.entity.Entity;
+import net.minecraft.util.RegistryKey;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+The state of every racer, one slot per racer, kept in parallel arrays.
+
+A slot is taken when a user enters racing mode and given back when they exit.
+Freed slots are reused, so tick() is a loop over a few dense arrays that neither hashes nor boxes.
+The slot of a user is only looked up when they enter, exit or are asked about.
+
+Gates are crossed and laps are timed under the class lock.
+What should happen because of it, like messages and the leaderboard, is returned as a GatePass
+and handled by RaceNavigate once the lock is released.
+* */
+public class RaceEngine {
+  private static final int MIN_CAPACITY = 16;
+  public static final long NOT_STARTED = 0;
+
+  /*
+  A gate that a racer passed.
+  * */
+  public static class GatePass {
+    public CompactId userId;
+    public @Nullable Entity entity;
+    public RaceTrack track;
+    public int gateIndex;
+    public int nextIndex;
+    // The lap timer was started or restarted at this time, or NOT_STARTED.
+    public long lapStart;
+    // The time of the completed lap, or -1 if no lap was completed.
+    public long lapMillis;
+  }
+
+  // userId -> slot
+  private static final HashMap<CompactId, Integer> slots = new HashMap<>();
+  private static int[] freeSlots = new int[MIN_CAPACITY];
+  private static int freeCount = 0;
+  // Every slot below this has been used:
+  private static int slotCount = 0;
+
+  // slot -> racer. A slot is free when its user is null.
+  private static CompactId[] users = new CompactId[MIN_CAPACITY];
+  private static Entity[] entities = new Entity[MIN_CAPACITY];
+  private static RaceTrack[] tracks = new RaceTrack[MIN_CAPACITY];
+  private static int[] dimensions = new int[MIN_CAPACITY];
+  private static RegistryKey<?>[] dimensionKeys = new RegistryKey<?>[MIN_CAPACITY];
+  private static int[] nextGate = new int[MIN_CAPACITY];
+  private static float[] prevX = new float[MIN_CAPACITY];
+  private static float[] prevY = new float[MIN_CAPACITY];
+  private static float[] prevZ = new float[MIN_CAPACITY];
+  private static long[] startTime = new long[MIN_CAPACITY];
+
+  private static final Vector3f intersection = new Vector3f();
+
+  /*
+  Puts the user on the track, or moves them to it if they are already racing.
+  @param entity - The player whose position tick() follows. Null during unit testing.
+  * */
+  public static synchronized void enter(CompactId userId, RaceTrack track, Vector3f playerPos, @Nullable Entity entity) {
+    Integer existing = slots.get(userId);
+    int slot = existing != null ? existing : allocate();
+    users[slot] = userId;
+    entities[slot] = entity;
+    tracks[slot] = track;
+    dimensions[slot] = DimensionRegistry.id(track.dimension);
+    dimensionKeys[slot] = entity != null ? DimensionRegistry.key(dimensions[slot]) : null;
+    nextGate[slot] = 0;
+    prevX[slot] = playerPos.x;
+    prevY[slot] = playerPos.y;
+    prevZ[slot] = playerPos.z;
+    startTime[slot] = NOT_STARTED;
+    slots.put(userId, slot);
+  }
+
+  /*
+  Returns the track the user was racing, or null if they were not racing.
+  * */
+  public static synchronized @Nullable RaceTrack exit(CompactId userId) {
+    Integer slot = slots.remove(userId);
+    if (slot == null) return null;
+    RaceTrack track = tracks[slot];
+    users[slot] = null;
+    entities[slot] = null;
+    tracks[slot] = null;
+    dimensionKeys[slot] = null;
+    if (freeCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+    }
+    freeSlots[freeCount++] = slot;
+    return track;
+  }
+
+  public static synchronized @Nullable RaceTrack getTrack(CompactId userId) {
+    Integer slot = slots.get(userId);
+    return slot == null ? null : tracks[slot];
+  }
+
+  /*
+  Returns -1 if the user is not racing.
+  * */
+  public static synchronized int getNextGate(CompactId userId) {
+    Integer slot = slots.get(userId);
+    return slot == null ? -1 : nextGate[slot];
+  }
+
+  public static synchronized int size() {
+    return slots.size();
+  }
+
+  /*
+  Moves every racer to where their player is now.
+  Called once per server tick.
+  * */
+  public static synchronized List<GatePass> tick() {
+    ArrayList<GatePass> passes = null;
+    for (int slot = 0; slot < slotCount; slot++) {
+      Entity entity = entities[slot];
+      if (entity == null) continue;
+      if (entity.removed) {
+        // Respawning and changing dimension replace the player entity:
+        entity = RaceBuild.getEntityFromId(users[slot]);
+        entities[slot] = entity;
+        if (entity == null) continue;
+      }
+      // Keys are interned, so this is an identity check:
+      int dimension = entity.getCommandSenderWorld().dimension() == dimensionKeys[slot] ? dimensions[slot] : -1;
+      passes = move(slot, dimension, (float) entity.getX(), (float) entity.getY(), (float) entity.getZ(), passes);
+    }
+    return passes != null ? passes : Collections.emptyList();
+  }
+
+  /*
+  Moves a single racer. Used when there is no player to follow, like in unit tests.
+  * */
+  public static synchronized List<GatePass> move(CompactId userId, int dimensionId, Vector3f playerPos) {
+    Integer slot = slots.get(userId);
+    if (slot == null) return Collections.emptyList();
+    ArrayList<GatePass> passes = move(slot, dimensionId, playerPos.x, playerPos.y, playerPos.z, null);
+    return passes != null ? passes : Collections.emptyList();
+  }
+
+  /*
+  The racer moved in a straight line from their previous position.
+  After passing a gate, the rest of the move is checked against the next gate,
+  so several gates can be passed in one tick.
+  * */
+  private static @Nullable ArrayList<GatePass> move(int slot, int dimension, float x, float y, float z, @Nullable ArrayList<GatePass> passes) {
+    if (x == prevX[slot] && y == prevY[slot] && z == prevZ[slot]) {
+      // No movement.
+      return passes;
+    }
+
+    ArrayList<RaceGate> gates = tracks[slot].gates;
+    if (gates != null && !gates.isEmpty()) {
+      for (int loopCount = 0; loopCount <= RaceBuild.MAX_GATES_PER_TRACK; loopCount++) {
+        RaceGate gate = gates.get(nextGate[slot]);
+        if (gate.crossing == null || gate.dimensionId != dimension) break;
+        if (!gate.crossing.test(prevX[slot], prevY[slot], prevZ[slot], x, y, z, intersection)) break;
+        prevX[slot] = intersection.x;
+        prevY[slot] = intersection.y;
+        prevZ[slot] = intersection.z;
+        if (passes == null) {
+          passes = new ArrayList<>();
+        }
+        passes.add(pass(slot, gates.size()));
+      }
+    }
+
+    // todo: also track user movement for cheat detection.
+    prevX[slot] = x;
+    prevY[slot] = y;
+    prevZ[slot] = z;
+    return passes;
+  }
+
+  private static GatePass pass(int slot, int gateCount) {
+    GatePass pass = new GatePass();
+    pass.userId = users[slot];
+    pass.entity = entities[slot];
+    pass.track = tracks[slot];
+    pass.gateIndex = nextGate[slot];
+    pass.nextIndex = pass.gateIndex + 1 < gateCount ? pass.gateIndex + 1 : 0;
+    pass.lapStart = NOT_STARTED;
+    pass.lapMillis = -1;
+    nextGate[slot] = pass.nextIndex;
+
+    if (pass.gateIndex == 0) {
+      long now = System.currentTimeMillis();
+      if (startTime[slot] != NOT_STARTED) {
+        pass.lapMillis = now - startTime[slot];
+      }
+      startTime[slot] = now;
+      pass.lapStart = now;
+    }
+    return pass;
+  }
+
+  private static int allocate() {
+    if (freeCount > 0) {
+      return freeSlots[--freeCount];
+    }
+    if (slotCount == users.length) {
+      int capacity = slotCount * 2;
+      users = Arrays.copyOf(users, capacity);
+      entities = Arrays.copyOf(entities, capacity);
+      tracks = Arrays.copyOf(tracks, capacity);
+      dimensions = Arrays.copyOf(dimensions, capacity);
+      dimensionKeys = Arrays.copyOf(dimensionKeys, capacity);
+      nextGate = Arrays.copyOf(nextGate, capacity);
+      prevX = Arrays.copyOf(prevX, capacity);
+      prevY = Arrays.copyOf(prevY, capacity);
+      prevZ = Arrays.copyOf(prevZ, capacity);
+      startTime = Arrays.copyOf(startTime, capacity);
+    }
+    return slotCount++;
+  }
+}
@@ -1,5 +1,6 @@
 package com.gluecode.fpvdrone.server.racing;
 
+import com.gluecode.fpvdrone.server.CompactId;
 import com.gluecode.fpvdrone.server.Main;
 import com.gluecode.fpvdrone.server.claiming.ChunkClaim;
 import com.jme3.math.Vector3f;
@@ -87,7 +88,7 @@ public class RaceEvents {
     if (event.isCanceled()) return;
 
     Block block = event.getPlacedBlock().getBlock();
-    String userId = RaceBuild.getId(event.getEntity());
+    CompactId userId = RaceBuild.getId(event.getEntity());
     String dimension = Main.getDimension(event.getEntity().getCommandSenderWorld());
     boolean isTargetBlock = isTargetBlock(block);
     if (isTargetBlock) {
@@ -105,7 +106,7 @@ public class RaceEvents {
     Entity entity = event.getEntity();
     World world = event.getWorld();
     BlockPos pos = event.getPos();
-    String userId = RaceBuild.getId(entity);
+    CompactId userId = RaceBuild.getId(entity);
     String dimension = Main.getDimension(world);
     int hashCode = RaceRightClickEvent.hashCode(userId, dimension, pos);
     Long time = lastRightClickTime.get(hashCode);
@@ -140,12 +141,13 @@ public class RaceEvents {
     }
 
     // inputs:
-    String userId = RaceBuild.getId(entity);
+    CompactId userId = RaceBuild.getId(entity);
     String dimension = Main.getDimension(world);
+    // Both names come from DimensionRegistry, so equals stops at the identity check:
     BiPredicate<String, BlockPos> checkSolid = (String testDimension, BlockPos testPos) -> {
+      if (!testDimension.equals(dimension)) return false;
       BlockState blockState = world.getBlockState(testPos);
-      return blockState.getMaterial().isSolid() &&
-      testDimension.equals(dimension);
+      return blockState.getMaterial().isSolid();
     };
 
     try {
@@ -168,7 +170,7 @@ public class RaceEvents {
         // The player will add a block to the track they are building.
         await(RaceBuild.addBlock(userId, dimension, pos, event.getFace(), checkSolid, entity));
       } else if (isTargetBlock &&
-        await(RaceNavigate.checkTrackStart(dimension, pos))) {
+        RaceNavigate.checkTrackStart(dimension, pos)) {
           // The player will enter or exit racing mode.
           Vector3f playerPos = new Vector3f(
             (float) entity.getX(),
@@ -214,7 +216,7 @@ public class RaceEvents {
       if (isTargetBlock) {
         // todo: the event cannot be cancelled inside an async method.
         // So we need a different way of preventing track deletion.
-        String userId = RaceBuild.getId(event.getPlayer());
+        CompactId userId = RaceBuild.getId(event.getPlayer());
         // remove Track will check ownership and
         // also take the user out of edit mode if they are in edit mode.
         await(RaceBuild.removeTrack(userId,
@@ -231,29 +233,23 @@ public class RaceEvents {
     return completedFuture(null);
   }
 
+  /*
+  Racers are moved together once per tick, after every player has moved. See RaceEngine.
+  * */
   @SubscribeEvent
-  public static void onPlayerMoved(TickEvent.PlayerTickEvent event) {
+  public static void onServerTick(TickEvent.ServerTickEvent event) {
     if (event.phase != TickEvent.Phase.END) return;
-    PlayerEntity entity = event.player;
-    String userId = RaceBuild.getId(entity);
-    String dimension = Main.getDimension(entity.getCommandSenderWorld());
-    if (RaceNavigate.checkRacingMode(userId)) {
-      Vector3f pos = new Vector3f((float) entity.getX(),
-      (float) entity.getY(),
-      (float) entity.getZ()
-      );
-      try {
-        RaceNavigate.onPlayerMoved(userId, dimension, pos, entity);
-      } catch (Exception e) {
-        Main.LOGGER.error(e.getMessage());
-      }
+    try {
+      RaceNavigate.tick();
+    } catch (Exception e) {
+      Main.LOGGER.error(e.getMessage());
     }
   }
 
   @SubscribeEvent
   public static void onPlayerLogOut(PlayerEvent.PlayerLoggedOutEvent event) {
     PlayerEntity entity = event.getPlayer();
-    String userId = RaceBuild.getId(entity);
+    CompactId userId = RaceBuild.getId(entity);
     RaceBuild.exitBuildingMode(userId, entity);
     RaceNavigate.exitRacingMode(userId, entity, null);
   }
@@ -1,6 +1,8 @@
 package com.gluecode.fpvdrone.server.racing;
 
 import com.github.f4b6a3.uuid.UuidCreator;
+import com.gluecode.fpvdrone.server.CompactId;
+import com.gluecode.fpvdrone.server.DimensionRegistry;
 import com.gluecode.fpvdrone.server.Main;
 import com.gluecode.fpvdrone.server.MySQLHelper;
 import com.jme3.math.Vector3f;
@@ -12,12 +14,17 @@ import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.BiPredicate;
 import java.util.function.Predicate;
 
@@ -25,15 +32,23 @@ import static com.ea.async.Async.await;
 import static java.util.concurrent.CompletableFuture.completedFuture;
 
 public class RaceGate {
+  public static final String COLUMNS = "raceGateId, raceTrackId, `index`, originX, originY, originZ, farthestX, farthestY, farthestZ, data, deleted, dateCreated";
+  private static final String SOFT_DELETE_SQL = "UPDATE RaceGate SET\n" +
+  "deleted = TRUE,\n" +
+  "dateUpdated = CURRENT_TIMESTAMP\n" +
+  "WHERE raceTrackId = ?;";
+
   // These values exist in DB but they come from Minecraft:
   // They will also be packed in the DB as the data field.
   public String dimension;
+  public int dimensionId; // See DimensionRegistry. -1 if dimension is null.
   public BlockPos a;
   public Direction face;
   public BlockPos b;
 
   // Database:
-  public String raceTrackId;
+  public CompactId raceGateId;
+  public CompactId raceTrackId;
   public int index;
   public boolean deleted; // Not really used right now since gates can only be obtained by raceTrackId.
   public Timestamp dateCreated;
@@ -43,16 +58,23 @@ public class RaceGate {
   public BlockPos origin; // The bottom-left corner of BB (more negative)
   public BlockPos farthest; // The top-right corner of BB (more positive)
   
-  // The following does not exist in DB and they will remain null unless computeBoundaries() is called:
+  // The following are packed in the data field once computed.
+  // They are null for gates stored before they were packed, until computeBoundaries() is called:
   public int[] rowMin; // left most block (solid) for a given row (relative to some up direction).
   public int[] rowMax; // right most block (solid) for a given row (relative to some up direction).
   public Vector3f right;
   public Vector3f up;
   public Vector3f normal;
+
+  // The following does not exist in DB and it will remain null unless RaceMath.loadGate is called:
   public ArrayList<BlockPos> path;
+  // Set by RaceTrack.loadGates once the boundaries are computed:
+  public GateCrossing crossing;
 
   public RaceGate(String dimension, BlockPos a, Direction face, BlockPos b) {
-    this.dimension = dimension;
+    // Old rows may lack a dimension. computeBoundaries reports them.
+    this.dimensionId = dimension == null ? -1 : DimensionRegistry.id(dimension);
+    this.dimension = dimension == null ? null : DimensionRegistry.name(this.dimensionId);
     this.a = a;
     this.face = face;
     this.b = b;
@@ -60,24 +82,60 @@ public class RaceGate {
 
   /*
   This is async to avoid blocking the thread when loading large arrays.
+
+  The stored geometry is trusted. RaceGateIndex.markChanged forgets it when a block near the gate changes,
+  and then the gate is loaded again from a, face and b.
+  Completes with true if the geometry was recomputed and should be stored with updateGeometry.
+  * */
+  public CompletableFuture<Boolean> computeBoundaries(BiPredicate<String, BlockPos> checkSolid) throws RaceGateException {
+    return computeBoundaries(checkSolid, ForkJoinPool.commonPool());
+  }
+
+  /*
+  Same as computeBoundaries, but runs on the given executor.
   * */
-  public CompletableFuture<Void> computeBoundaries(BiPredicate<String, BlockPos> checkSolid) throws RaceGateException {
+  public CompletableFuture<Boolean> computeBoundaries(BiPredicate<String, BlockPos> checkSolid, Executor executor) throws RaceGateException {
     try {
-      await(CompletableFuture.runAsync(() -> {
+      boolean recomputed = await(CompletableFuture.supplyAsync(() -> {
         try {
           if (this.dimension == null || this.a == null || this.face == null || this.b == null) {
             throw new RaceGateException("Gate has null values from DB.", "This track is not supported in this version. Please rebuild the track.");
-          } else {
-            RaceMath.loadGate(this.dimension, this.a, this.face, this.b, checkSolid, this);
           }
+          if (hasStoredGeometry()) {
+            // Nothing changed since the geometry was computed.
+            return false;
+          }
+          RaceMath.loadGate(this.dimension, this.a, this.face, this.b, checkSolid, this);
+          return true;
         } catch (RaceGateException e) {
           throw new CompletionException(e);
         }
-      }));
+      }, executor));
+      return completedFuture(recomputed);
     } catch (CompletionException e) {
       throw (RaceGateException) e.getCause();
     }
-    return completedFuture(null);
+  }
+
+  public boolean hasStoredGeometry() {
+    return this.origin != null &&
+    this.farthest != null &&
+    this.rowMin != null &&
+    this.rowMax != null &&
+    this.right != null &&
+    this.up != null &&
+    this.normal != null;
+  }
+
+  /*
+  Makes computeBoundaries load the gate again.
+  * */
+  public void clearGeometry() {
+    this.rowMin = null;
+    this.rowMax = null;
+    this.right = null;
+    this.up = null;
+    this.normal = null;
   }
 
   public void setBoundaries(BlockPos origin, BlockPos farthest, int[] rowMin, int[] rowMax, Vector3f right, Vector3f up, Vector3f normal, ArrayList<BlockPos> path) {
@@ -107,12 +165,30 @@ public class RaceGate {
     return result;
   }
 
+  /*
+  Gates are axis aligned, so the directions are packed as integers.
+  * */
+  public static JSONArray packVector(Vector3f vector) {
+    JSONArray result = new JSONArray();
+    result.add(Math.round(vector.x));
+    result.add(Math.round(vector.y));
+    result.add(Math.round(vector.z));
+    return result;
+  }
+
   public static JSONObject packData(RaceGate gate) {
     JSONObject data = new JSONObject();
     data.put("dimension", gate.dimension);
     data.put("a", packBlockPos(gate.a));
     data.put("face", packDirection(gate.face));
     data.put("b", packBlockPos(gate.b));
+    if (gate.hasStoredGeometry()) {
+      data.put("rowMin", packIntArray(gate.rowMin));
+      data.put("rowMax", packIntArray(gate.rowMax));
+      data.put("right", packVector(gate.right));
+      data.put("up", packVector(gate.up));
+      data.put("normal", packVector(gate.normal));
+    }
     return data;
   }
 
@@ -135,35 +211,46 @@ public class RaceGate {
     return direction.get3DDataValue();
   }
 
+  public static Vector3f unpackVector(JSONArray data) {
+    float x = (long) data.get(0);
+    float y = (long) data.get(1);
+    float z = (long) data.get(2);
+    return new Vector3f(x, y, z);
+  }
+
   public static Direction unpackDirection(long data) {
     return Direction.from3DDataValue(Math.toIntExact(data));
   }
 
-  public static RaceGate unpackRow(JSONObject row) {
-    JSONObject data = (JSONObject) JSONValue.parse((String) row.get("data"));
+  /*
+  Reads a row selected with COLUMNS.
+  * */
+  public static RaceGate unpackRow(ResultSet row) throws SQLException {
+    JSONObject data = (JSONObject) JSONValue.parse(row.getString(10));
 
     String dimension = (String) data.get("dimension");
     BlockPos a = unpackBlockPos((JSONArray) data.get("a"));
     Direction face = unpackDirection((long) data.get("face"));
     BlockPos b = unpackBlockPos((JSONArray) data.get("b"));
     RaceGate gate = new RaceGate(dimension, a, face, b);
-    
-    gate.origin = new BlockPos((int) row.get("originX"), (int) row.get("originY"), (int) row.get("originZ"));
-    gate.farthest = new BlockPos((int) row.get("farthestX"), (int) row.get("farthestY"), (int) row.get("farthestZ"));
-    gate.raceTrackId = (String) row.get("raceTrackId");
-    gate.index = (int) row.get("index");
-    gate.deleted = (boolean) row.get("deleted");
-    gate.dateCreated = (Timestamp) row.get("dateCreated");
 
-    return gate;
-  }
+    gate.raceGateId = MySQLHelper.getId(row, 1);
+    gate.raceTrackId = MySQLHelper.getId(row, 2);
+    gate.index = row.getInt(3);
+    gate.origin = new BlockPos(row.getInt(4), row.getInt(5), row.getInt(6));
+    gate.farthest = new BlockPos(row.getInt(7), row.getInt(8), row.getInt(9));
+    gate.deleted = row.getBoolean(11);
+    gate.dateCreated = row.getTimestamp(12);
 
-  public static ArrayList<RaceGate> unpackRows(JSONArray rows) {
-    ArrayList<RaceGate> result = new ArrayList<>();
-    for (Object row : rows) {
-      result.add(unpackRow((JSONObject) row));
+    if (data.containsKey("normal")) {
+      gate.rowMin = unpackIntArray((JSONArray) data.get("rowMin"));
+      gate.rowMax = unpackIntArray((JSONArray) data.get("rowMax"));
+      gate.right = unpackVector((JSONArray) data.get("right"));
+      gate.up = unpackVector((JSONArray) data.get("up"));
+      gate.normal = unpackVector((JSONArray) data.get("normal"));
     }
-    return result;
+
+    return gate;
   }
 
   public static void createTable() throws Exception {
@@ -198,31 +285,31 @@ public class RaceGate {
     if (!MySQLHelper.DB_HOST.equals("localhost")) return completedFuture(null);
     String sql = "TRUNCATE TABLE RaceGate;";
     await(MySQLHelper.prepareAndExecute(sql, null));
+    RaceGateIndex.clear();
     return completedFuture(null);
   }
 
   public static CompletableFuture<ArrayList<RaceGate>> testSelectAll() throws Exception {
-    String sql = "SELECT * FROM RaceGate;";
-    JSONArray rows = await(MySQLHelper.prepareAndExecute(sql, null));
-    return completedFuture(unpackRows(rows));
+    String sql = "SELECT " + COLUMNS + " FROM RaceGate;";
+    return MySQLHelper.query(sql, null, RaceGate::unpackRow);
   }
 
-  public static CompletableFuture<ArrayList<RaceGate>> getGates(String raceTrackId) throws Exception {
-    String sql = "SELECT * FROM RaceGate\n" +
-    "WHERE raceTrackId = UNHEX(?)\n" +
+  public static CompletableFuture<ArrayList<RaceGate>> getGates(CompactId raceTrackId) throws Exception {
+    String sql = "SELECT " + COLUMNS + " FROM RaceGate\n" +
+    "WHERE raceTrackId = ?\n" +
     "ORDER BY `index`;";
-    JSONArray rows = await(MySQLHelper.prepareAndExecute(sql, (statement) -> {
-      statement.setString(1, raceTrackId);
-    }));
-    return completedFuture(unpackRows(rows));
+    return MySQLHelper.query(sql, (statement) -> {
+      MySQLHelper.setId(statement, 1, raceTrackId);
+    }, RaceGate::unpackRow);
   }
 
   /*
   Gets the gate if the block is inside the gates's AABB.
   Returns an array because AABB may overlap.
+  Hot paths should use RaceGateIndex instead.
   * */
   public static CompletableFuture<ArrayList<RaceGate>> getGateByBlock(String dimension, BlockPos pos) throws Exception {
-    String sql = "SELECT * FROM RaceGate\n" +
+    String sql = "SELECT " + COLUMNS + " FROM RaceGate\n" +
     "WHERE data->>'$.dimension' = ?\n" +
     "AND IF(\n" +
     "    originX = farthestX, -- fixedX\n" +
@@ -240,28 +327,56 @@ public class RaceGate {
     "    originZ <= ? && ? <= farthestZ\n" +
     ")\n" +
     "AND !deleted;";
-    JSONArray rows = await(
-      MySQLHelper.prepareAndExecute(sql, (statement) -> {
-        statement.setString(1, dimension);
-        statement.setInt(2, pos.getX());
-        statement.setInt(3, pos.getX());
-        statement.setInt(4, pos.getX());
-        statement.setInt(5, pos.getY());
-        statement.setInt(6, pos.getY());
-        statement.setInt(7, pos.getY());
-        statement.setInt(8, pos.getZ());
-        statement.setInt(9, pos.getZ());
-        statement.setInt(10, pos.getZ());
+    return MySQLHelper.query(sql, (statement) -> {
+      statement.setString(1, dimension);
+      statement.setInt(2, pos.getX());
+      statement.setInt(3, pos.getX());
+      statement.setInt(4, pos.getX());
+      statement.setInt(5, pos.getY());
+      statement.setInt(6, pos.getY());
+      statement.setInt(7, pos.getY());
+      statement.setInt(8, pos.getZ());
+      statement.setInt(9, pos.getZ());
+      statement.setInt(10, pos.getZ());
+    }, RaceGate::unpackRow);
+  }
+
+  public static @NotNull
+  CompletableFuture<CompactId> insertGate(CompactId raceTrackId, int index, RaceGate gate) throws Exception {
+    CompactId raceGateId = MySQLHelper.newId();
+    await(
+      MySQLHelper.prepareAndExecute(insertSql(1), (statement) -> {
+        bindInsert(statement, 1, raceGateId, raceTrackId, index, gate);
       })
     );
-    return completedFuture(unpackRows(rows));
+    gate.raceGateId = raceGateId;
+    RaceGateIndex.putGate(raceTrackId, raceGateId, gate.origin, gate.farthest);
+    return completedFuture(raceGateId);
   }
 
-  public static @NotNull
-  CompletableFuture<String> insertGate(String raceTrackId, int index, RaceGate gate) throws Exception {
-    String raceGateId = MySQLHelper.newId();
-    JSONObject data = packData(gate);
-    String sql = "INSERT INTO RaceGate (\n" +
+  /*
+  Inserts all the gates of a track with one multi-row INSERT on the connection of a transaction.
+  The gates are indexed in order. RaceGateIndex must be updated by the caller after the commit.
+  * */
+  public static void insertGates(Connection connection, CompactId raceTrackId, ArrayList<RaceGate> gates) throws SQLException {
+    if (gates.isEmpty()) return;
+    CompactId[] raceGateIds = new CompactId[gates.size()];
+    for (int i = 0; i < raceGateIds.length; i++) {
+      raceGateIds[i] = MySQLHelper.newId();
+    }
+    MySQLHelper.execute(connection, insertSql(gates.size()), (statement) -> {
+      int column = 1;
+      for (int i = 0; i < gates.size(); i++) {
+        column = bindInsert(statement, column, raceGateIds[i], raceTrackId, i, gates.get(i));
+      }
+    });
+    for (int i = 0; i < raceGateIds.length; i++) {
+      gates.get(i).raceGateId = raceGateIds[i];
+    }
+  }
+
+  private static String insertSql(int rows) {
+    StringBuilder sql = new StringBuilder("INSERT INTO RaceGate (\n" +
     "`raceGateId`,\n" +
     "`raceTrackId`,\n" +
     "`index`,\n" +
@@ -272,55 +387,105 @@ public class RaceGate {
     "`farthestY`,\n" +
     "`farthestZ`,\n" +
     "`data`\n" +
-    ") VALUES (\n" +
-    // raceGateId
-    "UNHEX(?),\n" +
-    // raceTrackId
-    "UNHEX(?),\n" +
-    // index
-    "?,\n" +
-    // originX
-    "?,\n" +
-    // originY
-    "?,\n" +
-    // originZ
-    "?,\n" +
-    // farthestX
-    "?,\n" +
-    // farthestY
-    "?,\n" +
-    // farthestZ
-    "?,\n" +
-    // data
-    "?\n" +
-    ");";
+    ") VALUES\n");
+    for (int i = 0; i < rows; i++) {
+      if (i > 0) {
+        sql.append(",\n");
+      }
+      sql.append("(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+    }
+    sql.append(";");
+    return sql.toString();
+  }
+
+  /*
+  Returns the next column.
+  * */
+  private static int bindInsert(PreparedStatement statement, int column, CompactId raceGateId, CompactId raceTrackId, int index, RaceGate gate) throws SQLException {
+    MySQLHelper.setId(statement, column++, raceGateId);
+    MySQLHelper.setId(statement, column++, raceTrackId);
+    statement.setInt(column++, index);
+    statement.setInt(column++, gate.origin.getX());
+    statement.setInt(column++, gate.origin.getY());
+    statement.setInt(column++, gate.origin.getZ());
+    statement.setInt(column++, gate.farthest.getX());
+    statement.setInt(column++, gate.farthest.getY());
+    statement.setInt(column++, gate.farthest.getZ());
+    statement.setString(column++, packData(gate).toJSONString());
+    return column;
+  }
+
+  /*
+  Stores geometry that was recomputed by computeBoundaries.
+  * */
+  public static CompletableFuture<Void> updateGeometry(RaceGate gate) throws Exception {
+    JSONObject data = packData(gate);
+    String sql = "UPDATE RaceGate SET\n" +
+    "originX = ?,\n" +
+    "originY = ?,\n" +
+    "originZ = ?,\n" +
+    "farthestX = ?,\n" +
+    "farthestY = ?,\n" +
+    "farthestZ = ?,\n" +
+    "data = ?,\n" +
+    "dateUpdated = CURRENT_TIMESTAMP\n" +
+    "WHERE raceGateId = ?;";
     await(
       MySQLHelper.prepareAndExecute(sql, (statement) -> {
-        statement.setString(1, raceGateId);
-        statement.setString(2, raceTrackId);
-        statement.setInt(3, index);
-        statement.setInt(4, gate.origin.getX());
-        statement.setInt(5, gate.origin.getY());
-        statement.setInt(6, gate.origin.getZ());
-        statement.setInt(7, gate.farthest.getX());
-        statement.setInt(8, gate.farthest.getY());
-        statement.setInt(9, gate.farthest.getZ());
-        statement.setString(10, data.toJSONString());
+        statement.setInt(1, gate.origin.getX());
+        statement.setInt(2, gate.origin.getY());
+        statement.setInt(3, gate.origin.getZ());
+        statement.setInt(4, gate.farthest.getX());
+        statement.setInt(5, gate.farthest.getY());
+        statement.setInt(6, gate.farthest.getZ());
+        statement.setString(7, data.toJSONString());
+        MySQLHelper.setId(statement, 8, gate.raceGateId);
       })
     );
-    return completedFuture(raceGateId);
+    return completedFuture(null);
   }
 
-  public static CompletableFuture<Void> softDelete(String raceTrackId) throws Exception {
-    String sql = "UPDATE RaceGate SET\n" +
-    "deleted = TRUE,\n" +
+  /*
+  Drops the stored geometry of gates that had a block changed near them.
+  The next load recomputes and stores it again.
+  solidHash was stored by older versions and goes too.
+  * */
+  public static CompletableFuture<Void> forgetGeometry(List<CompactId> raceGateIds) throws Exception {
+    StringBuilder sql = new StringBuilder("UPDATE RaceGate SET\n" +
+    "data = JSON_REMOVE(data, '$.rowMin', '$.rowMax', '$.right', '$.up', '$.normal', '$.solidHash'),\n" +
     "dateUpdated = CURRENT_TIMESTAMP\n" +
-    "WHERE raceTrackId = UNHEX(?);";
+    "WHERE raceGateId IN (");
+    for (int i = 0; i < raceGateIds.size(); i++) {
+      sql.append(i == 0 ? "?" : ", ?");
+    }
+    sql.append(");");
     await(
-      MySQLHelper.prepareAndExecute(sql, (statement) -> {
-        statement.setString(1, raceTrackId);
+      MySQLHelper.prepareAndExecute(sql.toString(), (statement) -> {
+        for (int i = 0; i < raceGateIds.size(); i++) {
+          MySQLHelper.setId(statement, i + 1, raceGateIds.get(i));
+        }
       })
     );
     return completedFuture(null);
   }
+
+  public static CompletableFuture<Void> softDelete(CompactId raceTrackId) throws Exception {
+    await(
+      MySQLHelper.prepareAndExecute(SOFT_DELETE_SQL, (statement) -> {
+        MySQLHelper.setId(statement, 1, raceTrackId);
+      })
+    );
+    RaceGateIndex.removeGates(raceTrackId);
+    return completedFuture(null);
+  }
+
+  /*
+  softDelete on the connection of a transaction.
+  RaceGateIndex must be updated by the caller after the commit.
+  * */
+  public static void softDelete(Connection connection, CompactId raceTrackId) throws SQLException {
+    MySQLHelper.execute(connection, SOFT_DELETE_SQL, (statement) -> {
+      MySQLHelper.setId(statement, 1, raceTrackId);
+    });
+  }
 }
@@ -27,30 +27,30 @@ public class RaceGateChangeEvents {
   @SubscribeEvent(priority = EventPriority.LOWEST)
   public static void onBlockBreak(BlockEvent.BreakEvent event) {
     if (!event.isCanceled()) {
-      String dimension = Main.getDimension(event.getPlayer().getCommandSenderWorld());
+      int dimensionId = Main.getDimensionId(event.getPlayer().getCommandSenderWorld());
       PlayerEntity entity = event.getPlayer();
       String entityName = entity == null ? "unknown entity" : entity.getName().getString();
-      RaceNavigate.changedGateBlock(dimension, event.getPos(), "A gate was changed by " + entityName);
+      RaceNavigate.changedGateBlock(dimensionId, event.getPos(), "A gate was changed by " + entityName);
     }
   }
 
   @SubscribeEvent(priority = EventPriority.LOWEST)
   public static void onBlockPlace(BlockEvent.EntityPlaceEvent event) {
     if (!event.isCanceled()) {
-      String dimension = Main.getDimension(event.getEntity().getCommandSenderWorld());
+      int dimensionId = Main.getDimensionId(event.getEntity().getCommandSenderWorld());
       Entity entity = event.getEntity();
       String entityName = entity == null ? "unknown entity" : entity.getName().getString();
-      RaceNavigate.changedGateBlock(dimension, event.getPos(), "A gate was changed by " + entityName);
+      RaceNavigate.changedGateBlock(dimensionId, event.getPos(), "A gate was changed by " + entityName);
     }
   }
 
   @SubscribeEvent(priority = EventPriority.LOWEST)
   public static void onBlockPlaceMultiple(BlockEvent.EntityMultiPlaceEvent event) {
     if (!event.isCanceled()) {
-      String dimension = Main.getDimension(event.getEntity().getCommandSenderWorld());
+      int dimensionId = Main.getDimensionId(event.getEntity().getCommandSenderWorld());
       Entity entity = event.getEntity();
       String entityName = entity == null ? "unknown entity" : entity.getName().getString();
-      RaceNavigate.changedGateBlock(dimension, event.getPos(), "A gate was changed by " + entityName);
+      RaceNavigate.changedGateBlock(dimensionId, event.getPos(), "A gate was changed by " + entityName);
     }
   }
 
@@ -64,19 +64,17 @@ public class RaceGateChangeEvents {
     if (explosion.getToBlow().isEmpty()) return;
     ArrayList<BlockPos> list = new ArrayList<>(explosion.getToBlow());
     World world = event.getWorld();
-    String dimension = Main.getDimension(world);
+    int dimensionId = Main.getDimensionId(world);
     LivingEntity entity = explosion.getSourceMob();
     
-    handleExplosion(dimension, list, entity);
+    handleExplosion(dimensionId, list, entity);
   }
 
-  public static CompletableFuture<Void> handleExplosion(String dimension, ArrayList<BlockPos> list, @Nullable Entity entity) {
+  public static CompletableFuture<Void> handleExplosion(int dimensionId, ArrayList<BlockPos> list, @Nullable Entity entity) {
     String reason = entity == null ? "A gate was changed by explosion" : "A gate was changed by " + entity.getName().getString();
-    
-    // todo: this loop is very expensive
-    for (BlockPos pos : list) {
-      await(RaceNavigate.changedGateBlock(dimension, pos, reason));
-    }
+
+    // All exploded blocks are handled in one pass so each affected track is only exited once.
+    await(RaceNavigate.changedGateBlocks(dimensionId, list, reason));
     return completedFuture(null);
   }
 }
@@ -0,0 +1,381 @@
+package com.gluecode.fpvdrone.server.racing;
+
+import com.gluecode.fpvdrone.server.CompactId;
+import com.gluecode.fpvdrone.server.DimensionRegistry;
+import com.gluecode.fpvdrone.server.LongObjectMap;
+import com.gluecode.fpvdrone.server.Main;
+import com.gluecode.fpvdrone.server.MySQLHelper;
+import net.minecraft.util.math.BlockPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/*
+In-memory spatial index of the AABB of every non-deleted gate,
+and of the starting block of every non-deleted track.
+
+Every block change on the server needs to know which tracks own a gate
+covering the changed block, and every right click on a target block needs to know
+if it starts a track, so both must be answered without touching the DB.
+The index holds every track, so a block that is not in it is not a track start,
+and a name that is not in it is free. It is the only cache of track rows.
+
+Gates are bucketed per DimensionRegistry id into a grid of chunk-sized columns (x and z only).
+A gate is at most MAX_PATH_LENGTH blocks around, so it only ever lands in a handful of cells.
+
+The same lookup tells which gates had a block changed near them.
+Their stored geometry is then no longer trusted, see markChanged.
+
+The index is built in RaceDatabase.load and kept current by
+RaceTrack.insertTrack, RaceGate.insertGate and the softDelete methods.
+* */
+public class RaceGateIndex {
+  private static final int CELL_SHIFT = 4;
+
+  // dimension id -> packed cell -> gates overlapping the cell
+  private static final ArrayList<LongObjectMap<ArrayList<IndexedGate>>> cells = new ArrayList<>();
+  // raceTrackId -> gates of the track
+  private static final HashMap<CompactId, ArrayList<IndexedGate>> trackGates = new HashMap<>();
+  // raceTrackId -> starting block of the track
+  private static final HashMap<CompactId, BlockKey> trackStarts = new HashMap<>();
+  // dimension id -> BlockPos.asLong of the starting block -> track
+  private static final ArrayList<LongObjectMap<RaceTrack>> startTracks = new ArrayList<>();
+  // lower case name -> track. The name column compares case insensitively, like this.
+  private static final HashMap<String, RaceTrack> trackNames = new HashMap<>();
+
+  /*
+  Loading is purposely blocking, like table creation.
+  * */
+  public static void load() throws Exception {
+    String trackSql = "SELECT " + RaceTrack.COLUMNS + " FROM RaceTrack\n" +
+    "WHERE !deleted;";
+    ArrayList<RaceTrack> tracks = MySQLHelper.query(trackSql, null, RaceTrack::new).join();
+
+    String gateSql = "SELECT g.raceTrackId, g.raceGateId, g.originX, g.originY, g.originZ, g.farthestX, g.farthestY, g.farthestZ\n" +
+    "FROM RaceGate g\n" +
+    "JOIN RaceTrack t ON g.raceTrackId = t.raceTrackId\n" +
+    "WHERE !g.deleted AND !t.deleted;";
+    ArrayList<IndexedGate> gates = MySQLHelper.query(gateSql, null, (result) -> new IndexedGate(
+    MySQLHelper.getId(result, 1),
+    MySQLHelper.getId(result, 2),
+    new BlockPos(result.getInt(3), result.getInt(4), result.getInt(5)),
+    new BlockPos(result.getInt(6), result.getInt(7), result.getInt(8))
+    )).join();
+
+    synchronized (RaceGateIndex.class) {
+      clear();
+      for (RaceTrack track : tracks) {
+        putTrack(track);
+      }
+      for (IndexedGate gate : gates) {
+        putGate(gate);
+      }
+    }
+
+    Main.LOGGER.info("Indexed " + tracks.size() + " tracks and " + gates.size() + " gates.");
+  }
+
+  public static synchronized void clear() {
+    cells.clear();
+    trackGates.clear();
+    trackStarts.clear();
+    startTracks.clear();
+    trackNames.clear();
+  }
+
+  public static synchronized String describe() {
+    int gates = 0;
+    for (ArrayList<IndexedGate> list : trackGates.values()) {
+      gates += list.size();
+    }
+    return "tracks: " + trackStarts.size() + " indexed with " + gates + " gates";
+  }
+
+  public static synchronized void putTrack(RaceTrack track) {
+    BlockPos startingPos = new BlockPos(track.startPosX, track.startPosY, track.startPosZ);
+    BlockKey startKey = new BlockKey(track.dimension, startingPos);
+    trackStarts.put(track.raceTrackId, startKey);
+    findOrCreate(startTracks, startKey.dimensionId).put(startingPos.asLong(), track);
+    if (track.name != null && !track.name.isEmpty()) {
+      trackNames.put(nameKey(track.name), track);
+    }
+
+    ArrayList<IndexedGate> gates = trackGates.get(track.raceTrackId);
+    if (gates != null) {
+      for (IndexedGate gate : gates) {
+        addToCells(startKey.dimensionId, gate);
+      }
+    }
+  }
+
+  /*
+  Returns the track that starts at pos, or null if there is none.
+  * */
+  public static synchronized @Nullable RaceTrack getTrack(String dimension, BlockPos pos) {
+    LongObjectMap<RaceTrack> starts = find(startTracks, DimensionRegistry.id(dimension));
+    if (starts == null) return null;
+    return starts.get(pos.asLong());
+  }
+
+  /*
+  Returns the track with this name, or null if the name is free.
+  * */
+  public static synchronized @Nullable RaceTrack getTrackByName(String name) {
+    return trackNames.get(nameKey(name));
+  }
+
+  /*
+  Gates are indexed under the dimension of their track.
+  A gate whose track is not indexed is kept, but it is not reported until the track is put.
+  * */
+  public static synchronized void putGate(CompactId raceTrackId, CompactId raceGateId, BlockPos origin, BlockPos farthest) {
+    putGate(new IndexedGate(raceTrackId, raceGateId, origin, farthest));
+  }
+
+  private static synchronized void putGate(IndexedGate gate) {
+    trackGates.computeIfAbsent(gate.raceTrackId, (key) -> new ArrayList<>()).add(gate);
+
+    BlockKey startKey = trackStarts.get(gate.raceTrackId);
+    if (startKey != null) {
+      addToCells(startKey.dimensionId, gate);
+    }
+  }
+
+  /*
+  Mirrors RaceTrack.softDelete.
+  The gates of the track go with it, since a deleted track's gates are never loaded again.
+  Returns the id of the removed track, or null if no track starts at startingPos.
+  * */
+  public static synchronized @Nullable CompactId removeTrack(String dimension, BlockPos startingPos) {
+    int dimensionId = DimensionRegistry.id(dimension);
+    LongObjectMap<RaceTrack> starts = find(startTracks, dimensionId);
+    RaceTrack track = starts == null ? null : starts.remove(startingPos.asLong());
+    if (track == null) return null;
+    CompactId raceTrackId = track.raceTrackId;
+    trackStarts.remove(raceTrackId);
+    if (track.name != null) {
+      trackNames.remove(nameKey(track.name), track);
+    }
+    ArrayList<IndexedGate> gates = trackGates.remove(raceTrackId);
+    if (gates != null) {
+      for (IndexedGate gate : gates) {
+        removeFromCells(dimensionId, gate);
+      }
+    }
+    return raceTrackId;
+  }
+
+  /*
+  Mirrors RaceGate.softDelete.
+  * */
+  public static synchronized void removeGates(CompactId raceTrackId) {
+    ArrayList<IndexedGate> gates = trackGates.remove(raceTrackId);
+    if (gates == null) return;
+    BlockKey startKey = trackStarts.get(raceTrackId);
+    if (startKey == null) return;
+    for (IndexedGate gate : gates) {
+      removeFromCells(startKey.dimensionId, gate);
+    }
+  }
+
+  /*
+  Returns the starting blocks of every track that owns a gate whose AABB contains pos.
+  * */
+  public static synchronized List<BlockKey> getTrackStarts(int dimensionId, BlockPos pos) {
+    LongObjectMap<ArrayList<IndexedGate>> grid = find(cells, dimensionId);
+    if (grid == null) return Collections.emptyList();
+
+    int x = pos.getX();
+    int y = pos.getY();
+    int z = pos.getZ();
+    ArrayList<IndexedGate> candidates = grid.get(pack(x >> CELL_SHIFT, z >> CELL_SHIFT));
+    if (candidates == null) return Collections.emptyList();
+
+    List<BlockKey> result = Collections.emptyList();
+    for (int i = 0; i < candidates.size(); i++) {
+      IndexedGate gate = candidates.get(i);
+      if (!gate.contains(x, y, z)) continue;
+      BlockKey startKey = trackStarts.get(gate.raceTrackId);
+      if (startKey == null || result.contains(startKey)) continue;
+      if (result.isEmpty()) {
+        result = new ArrayList<>(1);
+      }
+      result.add(startKey);
+    }
+    return result;
+  }
+
+  /*
+  Bulk version of getTrackStarts for explosions.
+  The union AABB of all positions narrows the candidate gates in a single pass over the grid,
+  then each candidate is confirmed against the individual positions.
+  * */
+  public static synchronized List<BlockKey> getTrackStarts(int dimensionId, List<BlockPos> positions) {
+    LongObjectMap<ArrayList<IndexedGate>> grid = find(cells, dimensionId);
+    if (grid == null || positions.isEmpty()) return Collections.emptyList();
+
+    int minX = Integer.MAX_VALUE;
+    int minY = Integer.MAX_VALUE;
+    int minZ = Integer.MAX_VALUE;
+    int maxX = Integer.MIN_VALUE;
+    int maxY = Integer.MIN_VALUE;
+    int maxZ = Integer.MIN_VALUE;
+    for (int i = 0; i < positions.size(); i++) {
+      BlockPos pos = positions.get(i);
+      minX = Math.min(minX, pos.getX());
+      minY = Math.min(minY, pos.getY());
+      minZ = Math.min(minZ, pos.getZ());
+      maxX = Math.max(maxX, pos.getX());
+      maxY = Math.max(maxY, pos.getY());
+      maxZ = Math.max(maxZ, pos.getZ());
+    }
+
+    List<BlockKey> result = Collections.emptyList();
+    ArrayList<IndexedGate> checked = new ArrayList<>();
+    for (int cellX = minX >> CELL_SHIFT; cellX <= maxX >> CELL_SHIFT; cellX++) {
+      for (int cellZ = minZ >> CELL_SHIFT; cellZ <= maxZ >> CELL_SHIFT; cellZ++) {
+        ArrayList<IndexedGate> candidates = grid.get(pack(cellX, cellZ));
+        if (candidates == null) continue;
+        for (IndexedGate gate : candidates) {
+          if (!gate.intersects(minX, minY, minZ, maxX, maxY, maxZ)) continue;
+          // A gate spanning several cells is only tested once:
+          if (checked.contains(gate)) continue;
+          checked.add(gate);
+
+          BlockKey startKey = trackStarts.get(gate.raceTrackId);
+          if (startKey == null || result.contains(startKey)) continue;
+          for (int i = 0; i < positions.size(); i++) {
+            BlockPos pos = positions.get(i);
+            if (gate.contains(pos.getX(), pos.getY(), pos.getZ())) {
+              if (result.isEmpty()) {
+                result = new ArrayList<>(1);
+              }
+              result.add(startKey);
+              break;
+            }
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /*
+  Flags every gate with a block near pos as changed, see IndexedGate.isNear.
+  Returns the ids of the gates that were not flagged yet, so their stored geometry can be forgotten once.
+  * */
+  public static synchronized List<CompactId> markChanged(int dimensionId, BlockPos pos) {
+    LongObjectMap<ArrayList<IndexedGate>> grid = find(cells, dimensionId);
+    if (grid == null) return Collections.emptyList();
+
+    int x = pos.getX();
+    int y = pos.getY();
+    int z = pos.getZ();
+    ArrayList<IndexedGate> candidates = grid.get(pack(x >> CELL_SHIFT, z >> CELL_SHIFT));
+    if (candidates == null) return Collections.emptyList();
+
+    List<CompactId> result = Collections.emptyList();
+    for (int i = 0; i < candidates.size(); i++) {
+      IndexedGate gate = candidates.get(i);
+      if (gate.changed || !gate.isNear(x, y, z)) continue;
+      gate.changed = true;
+      if (result.isEmpty()) {
+        result = new ArrayList<>(1);
+      }
+      result.add(gate.raceGateId);
+    }
+    return result;
+  }
+
+  /*
+  Bulk version of markChanged for explosions.
+  * */
+  public static synchronized List<CompactId> markChanged(int dimensionId, List<BlockPos> positions) {
+    List<CompactId> result = Collections.emptyList();
+    for (int i = 0; i < positions.size(); i++) {
+      List<CompactId> changed = markChanged(dimensionId, positions.get(i));
+      if (changed.isEmpty()) continue;
+      if (result.isEmpty()) {
+        result = new ArrayList<>(changed.size());
+      }
+      result.addAll(changed);
+    }
+    return result;
+  }
+
+  /*
+  True if a block changed near the gate since it was put.
+  Putting the gate again, like loadGates does after recomputing it, clears the flag.
+  * */
+  public static synchronized boolean isChanged(CompactId raceTrackId, CompactId raceGateId) {
+    ArrayList<IndexedGate> gates = trackGates.get(raceTrackId);
+    if (gates == null) return false;
+    for (int i = 0; i < gates.size(); i++) {
+      IndexedGate gate = gates.get(i);
+      if (gate.raceGateId.equals(raceGateId)) {
+        return gate.changed;
+      }
+    }
+    return false;
+  }
+
+  private static String nameKey(String name) {
+    return name.toLowerCase(Locale.ROOT);
+  }
+
+  private static long pack(int cellX, int cellZ) {
+    return ((long) cellX << 32) | (cellZ & 0xFFFFFFFFL);
+  }
+
+  private static @Nullable <V> LongObjectMap<V> find(ArrayList<LongObjectMap<V>> byDimension, int dimensionId) {
+    return dimensionId >= 0 && dimensionId < byDimension.size() ? byDimension.get(dimensionId) : null;
+  }
+
+  private static <V> LongObjectMap<V> findOrCreate(ArrayList<LongObjectMap<V>> byDimension, int dimensionId) {
+    while (byDimension.size() <= dimensionId) {
+      byDimension.add(null);
+    }
+    LongObjectMap<V> map = byDimension.get(dimensionId);
+    if (map == null) {
+      map = new LongObjectMap<>();
+      byDimension.set(dimensionId, map);
+    }
+    return map;
+  }
+
+  private static void addToCells(int dimensionId, IndexedGate gate) {
+    LongObjectMap<ArrayList<IndexedGate>> grid = findOrCreate(cells, dimensionId);
+    // The margin is included, so markChanged finds the gate too:
+    for (int cellX = (gate.minX - gate.marginX) >> CELL_SHIFT; cellX <= (gate.maxX + gate.marginX) >> CELL_SHIFT; cellX++) {
+      for (int cellZ = (gate.minZ - gate.marginZ) >> CELL_SHIFT; cellZ <= (gate.maxZ + gate.marginZ) >> CELL_SHIFT; cellZ++) {
+        long cell = pack(cellX, cellZ);
+        ArrayList<IndexedGate> list = grid.get(cell);
+        if (list == null) {
+          list = new ArrayList<>(2);
+          grid.put(cell, list);
+        }
+        list.add(gate);
+      }
+    }
+  }
+
+  private static void removeFromCells(int dimensionId, IndexedGate gate) {
+    LongObjectMap<ArrayList<IndexedGate>> grid = find(cells, dimensionId);
+    if (grid == null) return;
+    for (int cellX = (gate.minX - gate.marginX) >> CELL_SHIFT; cellX <= (gate.maxX + gate.marginX) >> CELL_SHIFT; cellX++) {
+      for (int cellZ = (gate.minZ - gate.marginZ) >> CELL_SHIFT; cellZ <= (gate.maxZ + gate.marginZ) >> CELL_SHIFT; cellZ++) {
+        long cell = pack(cellX, cellZ);
+        ArrayList<IndexedGate> list = grid.get(cell);
+        if (list == null) continue;
+        list.remove(gate);
+        if (list.isEmpty()) {
+          grid.remove(cell);
+        }
+      }
+    }
+  }
+}
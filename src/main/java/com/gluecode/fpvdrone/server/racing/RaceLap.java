@@ -1,16 +1,19 @@
 package com.gluecode.fpvdrone.server.racing;
 
+import com.gluecode.fpvdrone.server.CompactId;
+import com.gluecode.fpvdrone.server.DBExecutor;
 import com.gluecode.fpvdrone.server.Main;
 import com.gluecode.fpvdrone.server.MySQLHelper;
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import static com.ea.async.Async.await;
 import static java.util.concurrent.CompletableFuture.completedFuture;
@@ -20,9 +23,11 @@ Represents a completion of a lap.
 Used for leaderboards.
 * */
 public class RaceLap {
-  public String raceLapId;
-  public String raceTrackId;
-  public String userId;
+  public static final String COLUMNS = "raceLapId, raceTrackId, userId, millis, version, data, dateCreated";
+
+  public CompactId raceLapId;
+  public CompactId raceTrackId;
+  public CompactId userId;
   public int millis;
   public String version;
   public JSONObject data;
@@ -30,15 +35,18 @@ public class RaceLap {
 
   private RaceLap() {}
 
-  public static RaceLap parseFromDB(JSONObject row) {
+  /*
+  Reads a row selected with COLUMNS.
+  * */
+  public static RaceLap parseFromDB(ResultSet row) throws SQLException {
     RaceLap lap = new RaceLap();
-    lap.raceLapId = (String) row.get("raceLapId");
-    lap.raceTrackId = (String) row.get("raceTrackId");
-    lap.userId = (String) row.get("userId");
-    lap.millis = (int) row.get("millis");
-    lap.version = (String) row.get("version");
-    lap.data = (JSONObject) JSONValue.parse((String) row.get("data"));
-    lap.dateCreated = (Timestamp) row.get("dateCreated");
+    lap.raceLapId = MySQLHelper.getId(row, 1);
+    lap.raceTrackId = MySQLHelper.getId(row, 2);
+    lap.userId = MySQLHelper.getId(row, 3);
+    lap.millis = row.getInt(4);
+    lap.version = row.getString(5);
+    lap.data = (JSONObject) JSONValue.parse(row.getString(6));
+    lap.dateCreated = row.getTimestamp(7);
     return lap;
   }
 
@@ -64,74 +72,102 @@ public class RaceLap {
     if (!MySQLHelper.DB_HOST.equals("localhost")) return completedFuture(null);
     String sql = "TRUNCATE TABLE RaceLap;";
     await(MySQLHelper.prepareAndExecute(sql, null));
+    RaceLeaderboard.clear();
     return completedFuture(null);
   }
 
   public static CompletableFuture<ArrayList<RaceLap>> selectAll() throws Exception {
-    String sql = "SELECT * FROM RaceLap;";
-    JSONArray rows = await(MySQLHelper.prepareAndExecute(sql, null));
-    ArrayList<RaceLap> result = new ArrayList<>();
-    for (Object row : rows) {
-      result.add(parseFromDB((JSONObject) row));
-    }
-    return completedFuture(result);
+    String sql = "SELECT " + COLUMNS + " FROM RaceLap;";
+    return MySQLHelper.query(sql, null, RaceLap::parseFromDB, DBExecutor.Priority.LOW);
+  }
+
+  /*
+  Streams every lap without holding them all in memory.
+  Completes with the number of laps.
+  * */
+  public static CompletableFuture<Integer> selectEach(Consumer<RaceLap> consumer) throws Exception {
+    String sql = "SELECT " + COLUMNS + " FROM RaceLap;";
+    return MySQLHelper.queryEach(sql, null, RaceLap::parseFromDB, consumer);
   }
 
-  public static CompletableFuture<ArrayList<RaceLap>> testGetByTrack(String raceTrackId) throws Exception {
-    String sql = "SELECT * FROM RaceLap WHERE raceTrackId = UNHEX(?);";
-    JSONArray rows = await(MySQLHelper.prepareAndExecute(sql, (statement) -> {
-      statement.setString(1, raceTrackId);
-    }));
-    ArrayList<RaceLap> result = new ArrayList<>();
-    for (Object row : rows) {
-      result.add(parseFromDB((JSONObject) row));
-    }
-    return completedFuture(result);
+  public static CompletableFuture<ArrayList<RaceLap>> testGetByTrack(CompactId raceTrackId) throws Exception {
+    String sql = "SELECT " + COLUMNS + " FROM RaceLap WHERE raceTrackId = ?;";
+    return MySQLHelper.query(sql, (statement) -> {
+      MySQLHelper.setId(statement, 1, raceTrackId);
+    }, RaceLap::parseFromDB);
   }
 
-  public static CompletableFuture<ArrayList<RaceLap>> getBestTimes(String raceTrackId) throws Exception {
-    String sql = "SELECT * FROM RaceLap r\n" +
-    "JOIN (\n" +
-    "    SELECT raceTrackId, userId, MIN(millis) AS millis FROM RaceLap\n" +
-    "    WHERE raceTrackId = UNHEX(?)\n" +
-    "    GROUP BY userId\n" +
-    ") m\n" +
-    "ON r.raceTrackId = m.raceTrackId AND r.userId = m.userId AND r.millis = m.millis \n" +
-    "ORDER BY r.millis ASC\n" +
+  public static CompletableFuture<ArrayList<RaceLap>> getBestTimes(CompactId raceTrackId) throws Exception {
+    String sql = BEST_TIMES_SQL + "\n" +
     "LIMIT 10;";
-    JSONArray rows = await(MySQLHelper.prepareAndExecute(sql, (statement) -> {
-      statement.setString(1, raceTrackId);
-    }));
-    ArrayList<RaceLap> result = new ArrayList<>();
-    for (Object row : rows) {
-      result.add(parseFromDB((JSONObject) row));
-    }
-    return completedFuture(result);
+    return selectBestTimes(sql, raceTrackId);
+  }
+
+  /*
+  The best lap of every user on the track, sorted.
+  Used to load RaceLeaderboard.
+  * */
+  public static CompletableFuture<ArrayList<RaceLap>> getAllBestTimes(CompactId raceTrackId) throws Exception {
+    String sql = BEST_TIMES_SQL + ";";
+    return selectBestTimes(sql, raceTrackId);
   }
 
-  public static CompletableFuture<RaceLap> getSingleBestTime(String raceTrackId, String userId) throws Exception {
-    String sql = "SELECT * FROM RaceLap\n" +
-    "WHERE raceTrackId = UNHEX(?)\n" +
-    "AND userId = UNHEX(?)\n" +
+  private static final String BEST_TIMES_SQL = "SELECT r.raceLapId, r.raceTrackId, r.userId, r.millis, r.version, r.data, r.dateCreated FROM RaceLap r\n" +
+  "JOIN (\n" +
+  "    SELECT raceTrackId, userId, MIN(millis) AS millis FROM RaceLap\n" +
+  "    WHERE raceTrackId = ?\n" +
+  "    GROUP BY userId\n" +
+  ") m\n" +
+  "ON r.raceTrackId = m.raceTrackId AND r.userId = m.userId AND r.millis = m.millis \n" +
+  "ORDER BY r.millis ASC";
+
+  private static CompletableFuture<ArrayList<RaceLap>> selectBestTimes(String sql, CompactId raceTrackId) throws Exception {
+    return MySQLHelper.query(sql, (statement) -> {
+      MySQLHelper.setId(statement, 1, raceTrackId);
+    }, RaceLap::parseFromDB);
+  }
+
+  public static CompletableFuture<RaceLap> getSingleBestTime(CompactId raceTrackId, CompactId userId) throws Exception {
+    String sql = "SELECT " + COLUMNS + " FROM RaceLap\n" +
+    "WHERE raceTrackId = ?\n" +
+    "AND userId = ?\n" +
     "ORDER BY millis ASC\n" +
     "LIMIT 1;";
-    JSONArray rows = await(
-      MySQLHelper.prepareAndExecute(sql, (statement) -> {
-        statement.setString(1, raceTrackId);
-        statement.setString(2, userId);
-      })
+    ArrayList<RaceLap> rows = await(
+      MySQLHelper.query(sql, (statement) -> {
+        MySQLHelper.setId(statement, 1, raceTrackId);
+        MySQLHelper.setId(statement, 2, userId);
+      }, RaceLap::parseFromDB)
     );
     if (rows.size() == 0) return completedFuture(null);
-    return completedFuture(parseFromDB((JSONObject) rows.get(0)));
+    return completedFuture(rows.get(0));
   }
 
-  public static CompletableFuture<String> insertLap(
-    String raceTrackId,
-    String userId,
+  /*
+  A new lap that is not in the DB yet. Persist it with insertLap.
+  * */
+  public static RaceLap create(CompactId raceTrackId, CompactId userId, int millis, JSONObject data) {
+    RaceLap lap = new RaceLap();
+    lap.raceLapId = MySQLHelper.newId();
+    lap.raceTrackId = raceTrackId;
+    lap.userId = userId;
+    lap.millis = millis;
+    lap.version = Main.version;
+    lap.data = data;
+    lap.dateCreated = new Timestamp(System.currentTimeMillis());
+    return lap;
+  }
+
+  public static CompletableFuture<CompactId> insertLap(
+    CompactId raceTrackId,
+    CompactId userId,
     int millis,
     JSONObject data
   ) throws Exception {
-    String raceLapId = MySQLHelper.newId();
+    return insertLap(create(raceTrackId, userId, millis, data));
+  }
+
+  public static CompletableFuture<CompactId> insertLap(RaceLap lap) throws Exception {
     String sql = "INSERT INTO RaceLap (\n" +
     "raceLapId,\n" +
     "raceTrackId,\n" +
@@ -141,11 +177,11 @@ public class RaceLap {
     "data\n" +
     ") VALUES (\n" +
     // raceLapId
-    "UNHEX(?),\n" +
+    "?,\n" +
     // raceTrackId
-    "UNHEX(?),\n" +
+    "?,\n" +
     // userId
-    "UNHEX(?),\n" +
+    "?,\n" +
     // millis
     "?,\n" +
     // version
@@ -155,14 +191,14 @@ public class RaceLap {
     ");";
     await(
       MySQLHelper.prepareAndExecute(sql, (statement) -> {
-        statement.setString(1, raceLapId);
-        statement.setString(2, raceTrackId);
-        statement.setString(3, userId);
-        statement.setInt(4, millis);
-        statement.setString(5, Main.version);
-        statement.setString(6, data.toJSONString());
-      })
+        MySQLHelper.setId(statement, 1, lap.raceLapId);
+        MySQLHelper.setId(statement, 2, lap.raceTrackId);
+        MySQLHelper.setId(statement, 3, lap.userId);
+        statement.setInt(4, lap.millis);
+        statement.setString(5, lap.version);
+        statement.setString(6, lap.data.toJSONString());
+      }, DBExecutor.Priority.HIGH)
     );
-    return completedFuture(raceLapId);
+    return completedFuture(lap.raceLapId);
   }
 }
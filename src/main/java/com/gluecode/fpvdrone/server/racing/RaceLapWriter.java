@@ -0,0 +1,160 @@
+package com.gluecode.fpvdrone.server.racing;
+
+import com.gluecode.fpvdrone.server.CompactId;
+import com.gluecode.fpvdrone.server.DBExecutor;
+import com.gluecode.fpvdrone.server.Main;
+import com.gluecode.fpvdrone.server.MySQLHelper;
+import org.json.simple.JSONArray;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+Write-behind buffer for RaceLap inserts.
+
+Laps are queued and stored as one multi-row INSERT every FLUSH_MILLIS,
+or as soon as MAX_BATCH laps are waiting.
+The future of each lap completes when its batch is committed.
+
+Must be drained before MySQLHelper.close. See Main.onServerStop.
+* */
+public class RaceLapWriter {
+  private static final int MAX_BATCH = 50;
+  private static final long FLUSH_MILLIS = 500;
+
+  private static class PendingLap {
+    final RaceLap lap;
+    final CompletableFuture<CompactId> future = new CompletableFuture<>();
+
+    PendingLap(RaceLap lap) {
+      this.lap = lap;
+    }
+  }
+
+  private static final ArrayList<PendingLap> buffer = new ArrayList<>();
+  private static final Set<CompletableFuture<Void>> inFlight = ConcurrentHashMap.newKeySet();
+  private static boolean drained = false;
+
+  private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+    Thread thread = new Thread(runnable, "RaceLapWriter");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  static {
+    timer.scheduleWithFixedDelay(RaceLapWriter::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /*
+  Completes with the raceLapId once the lap is stored.
+  * */
+  public static CompletableFuture<CompactId> enqueue(RaceLap lap) {
+    PendingLap pending = new PendingLap(lap);
+    boolean full;
+    synchronized (buffer) {
+      if (drained) {
+        pending.future.completeExceptionally(new Exception("The server is stopping."));
+        return pending.future;
+      }
+      buffer.add(pending);
+      full = buffer.size() >= MAX_BATCH;
+    }
+    if (full) {
+      flush();
+    }
+    return pending.future;
+  }
+
+  /*
+  Writes everything that is buffered now.
+  Completes when every batch that was started so far is committed.
+  * */
+  public static CompletableFuture<Void> flush() {
+    while (true) {
+      ArrayList<PendingLap> batch;
+      synchronized (buffer) {
+        if (buffer.isEmpty()) break;
+        int size = Math.min(MAX_BATCH, buffer.size());
+        batch = new ArrayList<>(buffer.subList(0, size));
+        buffer.subList(0, size).clear();
+      }
+      CompletableFuture<Void> write = writeBatch(batch);
+      inFlight.add(write);
+      write.whenComplete((result, e) -> inFlight.remove(write));
+    }
+    return CompletableFuture.allOf(inFlight.toArray(new CompletableFuture[0]));
+  }
+
+  /*
+  Stops buffering and writes what is left.
+  * */
+  public static void drain(long timeout, TimeUnit unit) {
+    synchronized (buffer) {
+      drained = true;
+    }
+    timer.shutdown();
+    Main.LOGGER.info("Storing buffered laps...");
+    try {
+      flush().get(timeout, unit);
+    } catch (Exception e) {
+      Main.LOGGER.error("Unable to store buffered laps: " + e.getMessage());
+    }
+  }
+
+  private static CompletableFuture<Void> writeBatch(ArrayList<PendingLap> batch) {
+    StringBuilder sql = new StringBuilder("INSERT INTO RaceLap (\n" +
+    "raceLapId,\n" +
+    "raceTrackId,\n" +
+    "userId,\n" +
+    "millis,\n" +
+    "version,\n" +
+    "data\n" +
+    ") VALUES\n");
+    for (int i = 0; i < batch.size(); i++) {
+      if (i > 0) {
+        sql.append(",\n");
+      }
+      sql.append("(?, ?, ?, ?, ?, ?)");
+    }
+    sql.append(";");
+
+    CompletableFuture<JSONArray> write;
+    try {
+      write = MySQLHelper.prepareAndExecute(sql.toString(), (statement) -> {
+        int column = 1;
+        for (PendingLap pending : batch) {
+          RaceLap lap = pending.lap;
+          MySQLHelper.setId(statement, column++, lap.raceLapId);
+          MySQLHelper.setId(statement, column++, lap.raceTrackId);
+          MySQLHelper.setId(statement, column++, lap.userId);
+          statement.setInt(column++, lap.millis);
+          statement.setString(column++, lap.version);
+          statement.setString(column++, lap.data.toJSONString());
+        }
+      }, DBExecutor.Priority.HIGH);
+    } catch (Exception e) {
+      write = new CompletableFuture<>();
+      write.completeExceptionally(e);
+    }
+
+    return write.handle((rows, e) -> {
+      if (e == null && rows == null) {
+        // prepareAndExecute logs execute errors and returns null.
+        e = new Exception("Unable to store " + batch.size() + " laps.");
+      }
+      for (PendingLap pending : batch) {
+        if (e == null) {
+          pending.future.complete(pending.lap.raceLapId);
+        } else {
+          pending.future.completeExceptionally(e);
+        }
+      }
+      return null;
+    });
+  }
+}
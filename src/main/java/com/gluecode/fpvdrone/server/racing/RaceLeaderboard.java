@@ -0,0 +1,141 @@
+package com.gluecode.fpvdrone.server.racing;
+
+import com.gluecode.fpvdrone.server.CompactId;
+import com.gluecode.fpvdrone.server.Main;
+import com.google.common.collect.Maps;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+import static com.ea.async.Async.await;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+
+/*
+In-memory leaderboard of a track: the best lap of every user, sorted by time.
+
+It is loaded from RaceLap.getAllBestTimes the first time a track is raced
+and then updated by submit() as laps are completed,
+so completing a lap only needs one write to the DB.
+* */
+public class RaceLeaderboard {
+  // Earliest lap wins a tie, like holding the lead.
+  private static final Comparator<RaceLap> ORDER = Comparator
+  .comparingInt((RaceLap lap) -> lap.millis)
+  .thenComparing((RaceLap lap) -> lap.dateCreated)
+  .thenComparing((RaceLap lap) -> lap.userId);
+
+  // raceTrackId -> leaderboard
+  private static Map<CompactId, RaceLeaderboard> leaderboards = Maps.newConcurrentMap();
+
+  // userId -> best lap
+  private final HashMap<CompactId, RaceLap> userBest = new HashMap<>();
+  private final TreeSet<RaceLap> ranking = new TreeSet<>(ORDER);
+
+  /*
+  The result of submitting a lap.
+  * */
+  public static class Result {
+    public @Nullable RaceLap prevTop;
+    public @Nullable RaceLap nextTop;
+    public RaceLap personalBest;
+    public boolean isPersonalBest;
+  }
+
+  private RaceLeaderboard(ArrayList<RaceLap> bestLaps) {
+    for (RaceLap lap : bestLaps) {
+      put(lap);
+    }
+  }
+
+  /*
+  Returns the cached leaderboard or loads it.
+  * */
+  public static CompletableFuture<RaceLeaderboard> get(CompactId raceTrackId) throws Exception {
+    RaceLeaderboard leaderboard = leaderboards.get(raceTrackId);
+    if (leaderboard != null) {
+      return completedFuture(leaderboard);
+    }
+
+    ArrayList<RaceLap> bestLaps = await(RaceLap.getAllBestTimes(raceTrackId));
+    leaderboard = new RaceLeaderboard(bestLaps);
+    RaceLeaderboard existing = leaderboards.putIfAbsent(raceTrackId, leaderboard);
+    return completedFuture(existing != null ? existing : leaderboard);
+  }
+
+  public static void remove(CompactId raceTrackId) {
+    leaderboards.remove(raceTrackId);
+  }
+
+  public static void clear() {
+    leaderboards.clear();
+  }
+
+  /*
+  Stores the lap in the DB without waiting for it.
+  See RaceLapWriter.
+  * */
+  public static void persist(RaceLap lap) {
+    RaceLapWriter.enqueue(lap).whenComplete((raceLapId, e) -> {
+      if (e != null) {
+        Main.LOGGER.error("Unable to store lap " + lap.raceLapId + ": " + e.getMessage());
+      }
+    });
+  }
+
+  /*
+  Completes when every lap persisted so far is written.
+  * */
+  public static CompletableFuture<Void> awaitWrites() {
+    return RaceLapWriter.flush();
+  }
+
+  /*
+  Adds a completed lap and reports the leader before and after.
+  * */
+  public synchronized Result submit(RaceLap lap) {
+    Result result = new Result();
+    result.prevTop = ranking.isEmpty() ? null : ranking.first();
+    result.isPersonalBest = put(lap);
+    result.nextTop = ranking.first();
+    result.personalBest = userBest.get(lap.userId);
+    return result;
+  }
+
+  public synchronized ArrayList<RaceLap> getTop(int limit) {
+    ArrayList<RaceLap> top = new ArrayList<>(Math.min(limit, ranking.size()));
+    for (RaceLap lap : ranking) {
+      if (top.size() >= limit) break;
+      top.add(lap);
+    }
+    return top;
+  }
+
+  public synchronized @Nullable RaceLap getBest(CompactId userId) {
+    return userBest.get(userId);
+  }
+
+  public synchronized int size() {
+    return userBest.size();
+  }
+
+  /*
+  Returns true if the lap became the user's best.
+  * */
+  private boolean put(RaceLap lap) {
+    RaceLap prevBest = userBest.get(lap.userId);
+    if (prevBest != null) {
+      if (ORDER.compare(lap, prevBest) >= 0) {
+        return false;
+      }
+      ranking.remove(prevBest);
+    }
+    userBest.put(lap.userId, lap);
+    ranking.add(lap);
+    return true;
+  }
+}
@@ -1,9 +1,10 @@
 package com.gluecode.fpvdrone.server.racing;
 
+import com.gluecode.fpvdrone.server.CompactId;
 import net.minecraft.util.math.BlockPos;
 
 public class RaceRightClickEvent {
-  public static int hashCode(String userId, String dimension, BlockPos pos) {
+  public static int hashCode(CompactId userId, String dimension, BlockPos pos) {
     return userId.hashCode() + dimension.hashCode() + pos.hashCode();
   }
 }
@@ -1,6 +1,8 @@
 package com.gluecode.fpvdrone.server.racing;
 
 import com.ea.async.Async;
+import com.gluecode.fpvdrone.server.CompactId;
+import com.gluecode.fpvdrone.server.DimensionRegistry;
 import com.gluecode.fpvdrone.server.Main;
 import com.gluecode.fpvdrone.server.MySQLHelper;
 import com.jme3.math.Vector3f;
@@ -11,6 +13,7 @@ import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BiPredicate;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -48,7 +51,7 @@ class RaceTest {
   }
 
   void insertAndReadRaceTrack() throws Exception {
-    String ownerUserId = MySQLHelper.newId();
+    CompactId ownerUserId = MySQLHelper.newId();
     String name = "test_track";
     String dimension = "minecraft:overworld";
     BlockPos startingPos = new BlockPos(0, 0, 0);
@@ -88,13 +91,13 @@ class RaceTest {
     RaceTrack.softDelete(dimension, startingPos).join();
 
     // Backslashes not allowed:
-    String trackId = RaceTrack.insertTrack(ownerUserId, "test_\\track", dimension, new BlockPos(1, 1, 1)).join();
+    CompactId trackId = RaceTrack.insertTrack(ownerUserId, "test_\\track", dimension, new BlockPos(1, 1, 1)).join();
     RaceTrack trackBackslash = RaceTrack.testGetTrackById(trackId).join();
     assertEquals(trackBackslash.name, name);
   }
 
   void insertAndReadGate() throws Exception {
-    String raceTrackId = MySQLHelper.newId();
+    CompactId raceTrackId = MySQLHelper.newId();
     String dimension = "minecraft:overworld";
     BlockPos a = new BlockPos(1, 0, 0);
     Direction face = Direction.UP;
@@ -159,7 +162,7 @@ class RaceTest {
   }
 
   void createAndUseSimpleTrack() throws Exception {
-    String userId = MySQLHelper.newId();
+    CompactId userId = MySQLHelper.newId();
     BlockPos startingPos = new BlockPos(0, 0, 0);
     String dimension = "minecraft:overworld";
     String trackName = "simple_track";
@@ -262,6 +265,13 @@ class RaceTest {
     assertEquals(track.startPosY, 0);
     assertEquals(track.startPosZ, 0);
 
+    // Names are answered by RaceGateIndex, whether they are taken or free:
+    int nameCalls = MySQLHelper.nCalls;
+    assertEquals(RaceTrack.getTrackByName(trackName).join().raceTrackId, track.raceTrackId);
+    assertEquals(RaceTrack.getTrackByName(trackName.toUpperCase()).join().raceTrackId, track.raceTrackId);
+    assertNull(RaceTrack.getTrackByName(trackName + "2").join());
+    assertEquals(MySQLHelper.nCalls, nameCalls);
+
     assertEquals(track.gates.get(0).index, 0);
     assertEquals(track.gates.get(1).index, 1);
 
@@ -281,6 +291,15 @@ class RaceTest {
     assertArrayEquals(track.gates.get(0).rowMax, new int[]{3, 4, 4, 4, 3});
     assertArrayEquals(track.gates.get(1).rowMax, new int[]{3, 4, 4, 4, 4, 3});
 
+    // The geometry is stored with the gates, so it is read back without RaceMath.loadGate:
+    ArrayList<RaceGate> storedGates = RaceGate.getGates(track.raceTrackId).join();
+    assertEquals(storedGates.size(), 2);
+    assertTrue(storedGates.get(0).hasStoredGeometry());
+    assertArrayEquals(storedGates.get(0).rowMin, track.gates.get(0).rowMin);
+    assertArrayEquals(storedGates.get(1).rowMax, track.gates.get(1).rowMax);
+    assertEquals(storedGates.get(1).normal, track.gates.get(1).normal);
+    assertFalse(storedGates.get(0).computeBoundaries(checkSolid).join());
+
     assertEquals(track.gates.get(0).dimension, dimension);
     assertEquals(track.gates.get(1).dimension, dimension);
 
@@ -291,7 +310,7 @@ class RaceTest {
     assertEquals(RaceNavigate.checkRacingMode(userId), true);
 
     // Test load only once:
-    String otherUserId = MySQLHelper.newId();
+    CompactId otherUserId = MySQLHelper.newId();
     int nCalls = MySQLHelper.nCalls;
     RaceNavigate.handleRightClickTrack(otherUserId, dimension, startingPos, checkSolid, playerPos, null).join();
     assertEquals(RaceNavigate.checkRacingMode(otherUserId), true);
@@ -320,70 +339,111 @@ class RaceTest {
     assertEquals(RaceNavigate.startToUsers.size(), 0);
     assertEquals(RaceNavigate.startToTrack.size(), 0);
 
-    // Enter racing mode at this time should cause a full-load of the track:
+    // Enter racing mode at this time should cause a full-load of the track.
+    // Users joining at the same time share the one load:
     nCalls = MySQLHelper.nCalls;
-    RaceNavigate.handleRightClickTrack(userId, dimension, startingPos, checkSolid, playerPos, null).join();
+    CompletableFuture<Void> firstJoin = RaceNavigate.handleRightClickTrack(userId, dimension, startingPos, checkSolid, playerPos, null);
+    CompletableFuture<Void> secondJoin = RaceNavigate.handleRightClickTrack(otherUserId, dimension, startingPos, checkSolid, playerPos, null);
+    firstJoin.join();
+    secondJoin.join();
     assertEquals(RaceNavigate.checkRacingMode(userId), true);
-    assertEquals(MySQLHelper.nCalls, nCalls + 2);
+    assertEquals(RaceNavigate.checkRacingMode(otherUserId), true);
+    // Only the gates are queried. The track comes from RaceGateIndex and the leaderboard is still loaded:
+    assertEquals(MySQLHelper.nCalls, nCalls + 1);
+    assertEquals(RaceNavigate.startToUsers.get(startKey).size(), 2);
+    RaceNavigate.handleRightClickTrack(otherUserId, dimension, startingPos, checkSolid, playerPos, null).join();
 
     // Breaking or adding a gate block when in racing mode should kick everyone out of the race.
-    RaceNavigate.changedGateBlock(dimension, new BlockPos(2, 1, 1), null).join();
+    // The lookup is done by RaceGateIndex. The only query forgets the stored geometry of the changed gate:
+    nCalls = MySQLHelper.nCalls;
+    RaceNavigate.changedGateBlock(DimensionRegistry.id(dimension), new BlockPos(2, 1, 1), null).join();
+    assertEquals(RaceNavigate.checkRacingMode(userId), false);
+    assertEquals(MySQLHelper.nCalls, nCalls + 1);
+    assertTrue(RaceGateIndex.isChanged(track.raceTrackId, track.gates.get(0).raceGateId));
+    assertFalse(RaceGateIndex.isChanged(track.raceTrackId, track.gates.get(1).raceGateId));
+    assertFalse(RaceGate.getGates(track.raceTrackId).join().get(0).hasStoredGeometry());
+    // Changing it again does not query:
+    nCalls = MySQLHelper.nCalls;
+    RaceNavigate.changedGateBlock(DimensionRegistry.id(dimension), new BlockPos(2, 2, 1), null).join();
+    assertEquals(MySQLHelper.nCalls, nCalls);
+    RaceNavigate.handleRightClickTrack(userId, dimension, startingPos, checkSolid, playerPos, null).join();
+    assertEquals(RaceNavigate.checkRacingMode(userId), true);
+    RaceNavigate.changedGateBlock(DimensionRegistry.id(dimension), new BlockPos(2, 3, 1), null).join();
     assertEquals(RaceNavigate.checkRacingMode(userId), false);
     RaceNavigate.handleRightClickTrack(userId, dimension, startingPos, checkSolid, playerPos, null).join();
     assertEquals(RaceNavigate.checkRacingMode(userId), true);
-    RaceNavigate.changedGateBlock(dimension, new BlockPos(2, 3, 1), null).join();
+
+    // An explosion touching both gates should exit the track's racers in one pass:
+    ArrayList<BlockPos> blown = new ArrayList<>();
+    blown.add(new BlockPos(2, 1, 1));
+    blown.add(new BlockPos(2, 1, 3));
+    blown.add(new BlockPos(20, 1, 20));
+    nCalls = MySQLHelper.nCalls;
+    RaceGateChangeEvents.handleExplosion(DimensionRegistry.id(dimension), blown, null).join();
     assertEquals(RaceNavigate.checkRacingMode(userId), false);
+    // Both gates are forgotten with a single query:
+    assertEquals(MySQLHelper.nCalls, nCalls + 1);
     RaceNavigate.handleRightClickTrack(userId, dimension, startingPos, checkSolid, playerPos, null).join();
     assertEquals(RaceNavigate.checkRacingMode(userId), true);
 
     // Move through the track
-    assertEquals(RaceNavigate.userNextGate.get(userId), 0);
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 0), null).join();
-    assertEquals(RaceNavigate.userNextGate.get(userId), 0);
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 1.5f), null).join();
-    assertEquals(RaceNavigate.userNextGate.get(userId), 1);
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 2.5f), null).join();
-    assertEquals(RaceNavigate.userNextGate.get(userId), 1);
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 3.5f), null).join();
-    assertEquals(RaceNavigate.userNextGate.get(userId), 0);
+    assertEquals(RaceEngine.getNextGate(userId), 0);
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 0)).join();
+    assertEquals(RaceEngine.getNextGate(userId), 0);
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 1.5f)).join();
+    assertEquals(RaceEngine.getNextGate(userId), 1);
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 2.5f)).join();
+    assertEquals(RaceEngine.getNextGate(userId), 1);
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 3.5f)).join();
+    assertEquals(RaceEngine.getNextGate(userId), 0);
 
     // Move back to beginning
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 2.5f), null).join();
-    assertEquals(RaceNavigate.userNextGate.get(userId), 0);
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 0), null).join();
-    assertEquals(RaceNavigate.userNextGate.get(userId), 1);
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 4.5f), null).join();
-    assertEquals(RaceNavigate.userNextGate.get(userId), 0);
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 2.5f)).join();
+    assertEquals(RaceEngine.getNextGate(userId), 0);
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 0)).join();
+    assertEquals(RaceEngine.getNextGate(userId), 1);
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 4.5f)).join();
+    assertEquals(RaceEngine.getNextGate(userId), 0);
 
     // Move back to beginning
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(4, 10, 4), null).join();
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(4, 10, 0), null).join();
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 0), null).join();
-    assertEquals(RaceNavigate.userNextGate.get(userId), 0);
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(4, 10, 4)).join();
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(4, 10, 0)).join();
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 0)).join();
+    assertEquals(RaceEngine.getNextGate(userId), 0);
 
     // Move through both gates in 1 time step
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 4.5f), null).join();
-    assertEquals(RaceNavigate.userNextGate.get(userId), 0);
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 4.5f)).join();
+    assertEquals(RaceEngine.getNextGate(userId), 0);
 
     // And back to the beginning once more to complete the lap:
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(4, 10, 4), null).join();
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(4, 10, 0), null).join();
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 0), null).join();
-    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 1.5f), null).join();
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(4, 10, 4)).join();
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(4, 10, 0)).join();
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 0)).join();
+    RaceNavigate.onPlayerMoved(userId, dimension, new Vector3f(1, 2, 1.5f)).join();
 
     // Check recorded laps:
+    RaceLeaderboard.awaitWrites().join();
     ArrayList<RaceLap> laps = RaceLap.testGetByTrack(track.raceTrackId).join();
     assertEquals(laps.size(), 3);
+    RaceLeaderboard leaderboard = RaceLeaderboard.get(track.raceTrackId).join();
+    assertEquals(leaderboard.size(), 1);
+    assertEquals(leaderboard.getBest(userId).millis, leaderboard.getTop(10).get(0).millis);
 
     // Exit racing:
     RaceNavigate.handleRightClickTrack(userId, dimension, startingPos, checkSolid, playerPos, null).join();
 
     RaceBuild.removeTrack(userId, dimension, startingPos, null).join();
+
+    // The track and its gates are deleted together:
+    assertNull(RaceTrack.getTrack(dimension, startingPos).join());
+    for (RaceGate gate : RaceGate.getGates(track.raceTrackId).join()) {
+      assertTrue(gate.deleted);
+    }
   }
 
 
   void createTrackOutsideFace() throws Exception {
-    String userId = MySQLHelper.newId();
+    CompactId userId = MySQLHelper.newId();
     BlockPos startingPos = new BlockPos(0, 0, 0);
     String dimension = "minecraft:overworld";
     String trackName = "simple_track";
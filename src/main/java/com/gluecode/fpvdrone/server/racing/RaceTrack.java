@@ -1,19 +1,26 @@
 package com.gluecode.fpvdrone.server.racing;
 
+import com.gluecode.fpvdrone.server.CompactId;
+import com.gluecode.fpvdrone.server.DimensionRegistry;
 import com.gluecode.fpvdrone.server.Main;
 import com.gluecode.fpvdrone.server.MySQLHelper;
+import com.gluecode.fpvdrone.server.Preparer;
 import com.jme3.math.Vector3f;
 import net.minecraft.util.math.BlockPos;
 import org.jetbrains.annotations.NotNull;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
 
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiPredicate;
 import java.util.function.Predicate;
 
@@ -21,8 +28,70 @@ import static com.ea.async.Async.await;
 import static java.util.concurrent.CompletableFuture.completedFuture;
 
 public class RaceTrack {
-  public String raceTrackId;
-  public String ownerUserId;
+  public static final String COLUMNS = "raceTrackId, ownerUserId, name, dimension, startPosX, startPosY, startPosZ, deleted, dateUpdated, dateCreated";
+  private static final String INSERT_SQL = "INSERT INTO RaceTrack (\n" +
+  "raceTrackId,\n" +
+  "ownerUserId,\n" +
+  "name,\n" +
+  "dimension,\n" +
+  "startPosX,\n" +
+  "startPosZ,\n" +
+  "startPosY\n" +
+  ") VALUES (\n" +
+  // raceTrackId
+  "?,\n" +
+  // ownerUserId
+  "?,\n" +
+  // name
+  "?,\n" +
+  // dimension
+  "?,\n" +
+  // startPosX
+  "?,\n" +
+  // startPosZ
+  "?,\n" +
+  // startPosY
+  "?\n" +
+  ");";
+  private static final String SOFT_DELETE_SQL = "UPDATE RaceTrack SET " +
+  "deleted = TRUE, " +
+  "dateUpdated = CURRENT_TIMESTAMP " +
+  "WHERE startPosX = ? " +
+  "AND startPosZ = ? " +
+  "AND startPosY = ? " +
+  "AND dimension = ? " +
+  "AND !`deleted`;";
+
+  /*
+  Gate boundaries are computed here instead of the common pool.
+  The queue holds a few full tracks. Past that, the thread loading the track helps out.
+  * */
+  private static final int GATE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+  private static final ThreadPoolExecutor gateExecutor = new ThreadPoolExecutor(
+  GATE_THREADS,
+  GATE_THREADS,
+  30,
+  TimeUnit.SECONDS,
+  new ArrayBlockingQueue<>(RaceBuild.MAX_GATES_PER_TRACK * 4),
+  new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(@NotNull Runnable runnable) {
+      Thread thread = new Thread(runnable, "RaceGate-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  },
+  new ThreadPoolExecutor.CallerRunsPolicy()
+  );
+
+  static {
+    gateExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  public CompactId raceTrackId;
+  public CompactId ownerUserId;
   public String name;
   public String dimension;
   public int startPosX;
@@ -35,30 +104,104 @@ public class RaceTrack {
   // Derived:
   public ArrayList<RaceGate> gates;
 
-  public RaceTrack(JSONObject data) {
-    this.raceTrackId = (String) data.get("raceTrackId");
-    this.ownerUserId = (String) data.get("ownerUserId");
-    this.name = (String) data.get("name");
-    this.dimension = (String) data.get("dimension");
-    this.startPosX = (int) data.get("startPosX");
-    this.startPosY = (int) data.get("startPosY");
-    this.startPosZ = (int) data.get("startPosZ");
-    this.deleted = (boolean) data.get("deleted");
-    this.dateUpdated = (Timestamp) data.get("dateUpdated");
-    this.dateCreated = (Timestamp) data.get("dateCreated");
+  /*
+  Reads a row selected with COLUMNS.
+  * */
+  public RaceTrack(ResultSet result) throws SQLException {
+    this.raceTrackId = MySQLHelper.getId(result, 1);
+    this.ownerUserId = MySQLHelper.getId(result, 2);
+    this.name = result.getString(3);
+    this.dimension = DimensionRegistry.intern(result.getString(4));
+    this.startPosX = result.getInt(5);
+    this.startPosY = result.getInt(6);
+    this.startPosZ = result.getInt(7);
+    this.deleted = result.getBoolean(8);
+    this.dateUpdated = result.getTimestamp(9);
+    this.dateCreated = result.getTimestamp(10);
   }
 
+  /*
+  A track that was just inserted, as it would be read back from the DB.
+  * */
+  public RaceTrack(CompactId raceTrackId, CompactId ownerUserId, String name, String dimension, BlockPos startingPos) {
+    Timestamp now = new Timestamp(System.currentTimeMillis());
+    this.raceTrackId = raceTrackId;
+    this.ownerUserId = ownerUserId;
+    this.name = MySQLHelper.sanitizeKeyboard(name);
+    this.dimension = DimensionRegistry.intern(dimension);
+    this.startPosX = startingPos.getX();
+    this.startPosY = startingPos.getY();
+    this.startPosZ = startingPos.getZ();
+    this.deleted = false;
+    this.dateUpdated = now;
+    this.dateCreated = now;
+  }
+
+  /*
+  Copies the row, but not the derived gates.
+  * */
+  public RaceTrack(RaceTrack other) {
+    this.raceTrackId = other.raceTrackId;
+    this.ownerUserId = other.ownerUserId;
+    this.name = other.name;
+    this.dimension = other.dimension;
+    this.startPosX = other.startPosX;
+    this.startPosY = other.startPosY;
+    this.startPosZ = other.startPosZ;
+    this.deleted = other.deleted;
+    this.dateUpdated = other.dateUpdated;
+    this.dateCreated = other.dateCreated;
+  }
+
+  /*
+  All gates are computed in parallel.
+  If any are broken, the message points at the first broken gate of the track.
+  Gates whose geometry had to be recomputed are stored again.
+  A gate with a block changed near it is recomputed even if its forgetGeometry has not been written yet.
+  * */
   public CompletableFuture<Void> loadGates(BiPredicate<String, BlockPos> checkSolid) throws Exception {
     this.gates = await(RaceGate.getGates(this.raceTrackId));
-    RaceGate currentGate = null;
+
+    ArrayList<CompletableFuture<Boolean>> computations = new ArrayList<>(this.gates.size());
+    for (RaceGate gate : this.gates) {
+      if (RaceGateIndex.isChanged(this.raceTrackId, gate.raceGateId)) {
+        gate.clearGeometry();
+      }
+      computations.add(gate.computeBoundaries(checkSolid, gateExecutor));
+    }
+
     try {
+      await(CompletableFuture.allOf(computations.toArray(new CompletableFuture[0])));
+    } catch (CompletionException e) {
+      for (int i = 0; i < computations.size(); i++) {
+        // Every computation is done at this point, so join does not block.
+        try {
+          computations.get(i).join();
+        } catch (CompletionException gateError) {
+          if (!(gateError.getCause() instanceof RaceGateException)) throw gateError;
+          RaceGateException ex = (RaceGateException) gateError.getCause();
+          RaceGate brokenGate = this.gates.get(i);
+          throw new Exception("The track has broken gates. " + ex.endUserReason + "\nCheck near [" + brokenGate.a.getX() + ", " + brokenGate.a.getY() + ", " + brokenGate.a.getZ() + "].");
+        }
+      }
+      throw e;
+    }
+
+    ArrayList<CompletableFuture<Void>> updates = new ArrayList<>();
+    for (int i = 0; i < this.gates.size(); i++) {
+      RaceGate gate = this.gates.get(i);
+      gate.crossing = new GateCrossing(gate);
+      if (computations.get(i).join()) {
+        updates.add(RaceGate.updateGeometry(gate));
+      }
+    }
+    if (!updates.isEmpty()) {
+      await(CompletableFuture.allOf(updates.toArray(new CompletableFuture[0])));
+      // The AABB may have moved:
+      RaceGateIndex.removeGates(this.raceTrackId);
       for (RaceGate gate : this.gates) {
-        currentGate = gate;
-        await(gate.computeBoundaries(checkSolid));
+        RaceGateIndex.putGate(this.raceTrackId, gate.raceGateId, gate.origin, gate.farthest);
       }
-    } catch (CompletionException e) {
-      RaceGateException ex = (RaceGateException) e.getCause();
-      throw new Exception("The track has broken gates. " + ex.endUserReason + "\nCheck near [" + currentGate.a.getX() + ", " + currentGate.a.getY() + ", " + currentGate.a.getZ() + "].");
     }
     return completedFuture(null);
   }
@@ -93,142 +236,156 @@ public class RaceTrack {
     if (!MySQLHelper.DB_HOST.equals("localhost")) return completedFuture(null);
     String sql = "TRUNCATE TABLE RaceTrack;";
     await(MySQLHelper.prepareAndExecute(sql, null));
+    RaceGateIndex.clear();
     return completedFuture(null);
   }
 
   public static CompletableFuture<ArrayList<RaceTrack>> testSelectAll() throws Exception {
-    String sql = "SELECT * FROM RaceTrack;";
-    JSONArray rows = await(MySQLHelper.prepareAndExecute(sql, null));
-    ArrayList<RaceTrack> result = new ArrayList<>();
-    for (Object row : rows) {
-      result.add(new RaceTrack((JSONObject) row));
-    }
-    return completedFuture(result);
+    String sql = "SELECT " + COLUMNS + " FROM RaceTrack;";
+    return MySQLHelper.query(sql, null, RaceTrack::new);
   }
 
-  public static CompletableFuture<RaceTrack> testGetTrackById(String raceTrackId) throws Exception {
-    String sql = "SELECT * FROM RaceTrack " + "WHERE raceTrackId = UNHEX(?);";
-    JSONArray data = await(
-      MySQLHelper.prepareAndExecute(sql, (statement) -> {
-        statement.setString(1, raceTrackId);
-      })
+  public static CompletableFuture<RaceTrack> testGetTrackById(CompactId raceTrackId) throws Exception {
+    String sql = "SELECT " + COLUMNS + " FROM RaceTrack " + "WHERE raceTrackId = ?;";
+    ArrayList<RaceTrack> data = await(
+      MySQLHelper.query(sql, (statement) -> {
+        MySQLHelper.setId(statement, 1, raceTrackId);
+      }, RaceTrack::new)
     );
-    if (data == null || data.size() == 0) return completedFuture(null);
-    return completedFuture(new RaceTrack((JSONObject) data.get(0)));
+    if (data.size() == 0) return completedFuture(null);
+    return completedFuture(data.get(0));
   }
 
-  public static CompletableFuture<RaceTrack> getTrackById(String raceTrackId) throws Exception {
-    String sql = "SELECT * FROM RaceTrack WHERE raceTrackId = UNHEX(?) AND !deleted;";
-    JSONArray data = await(
-      MySQLHelper.prepareAndExecute(sql, (statement) -> {
-        statement.setString(1, raceTrackId);
-      })
+  public static CompletableFuture<RaceTrack> getTrackById(CompactId raceTrackId) throws Exception {
+    String sql = "SELECT " + COLUMNS + " FROM RaceTrack WHERE raceTrackId = ? AND !deleted;";
+    ArrayList<RaceTrack> data = await(
+      MySQLHelper.query(sql, (statement) -> {
+        MySQLHelper.setId(statement, 1, raceTrackId);
+      }, RaceTrack::new)
     );
-    if (data == null || data.size() == 0) return completedFuture(null);
-    return completedFuture(new RaceTrack((JSONObject) data.get(0)));
+    if (data.size() == 0) return completedFuture(null);
+    return completedFuture(data.get(0));
   }
 
-  public static CompletableFuture<RaceTrack> getTrackByName(String name) throws Exception {
-    String fname = MySQLHelper.sanitizeKeyboard(name);
-    String sql = "SELECT * FROM RaceTrack WHERE name = ? AND !deleted;";
-    JSONArray data = await(
-    MySQLHelper.prepareAndExecute(sql, (statement) -> {
-      statement.setString(1, fname);
-    })
-    );
-    if (data == null || data.size() == 0) return completedFuture(null);
-    return completedFuture(new RaceTrack((JSONObject) data.get(0)));
-  }
-
-  public static CompletableFuture<RaceTrack> getTrack(String dimension, BlockPos pos) throws Exception {
-    String sql = "SELECT * FROM RaceTrack " +
-    "WHERE startPosX = ? " +
-    "AND startPosZ = ? " +
-    "AND startPosY = ? " +
-    "AND dimension = ? " +
-    "AND !deleted;";
-    JSONArray data = await(
-      MySQLHelper.prepareAndExecute(sql, (statement) -> {
-        statement.setInt(1, pos.getX());
-        statement.setInt(2, pos.getZ());
-        statement.setInt(3, pos.getY());
-        statement.setString(4, dimension);
-      })
-    );
-    if (data == null || data.size() == 0) return completedFuture(null);
-    return completedFuture(new RaceTrack((JSONObject) data.get(0)));
+  /*
+  Answered by RaceGateIndex, which holds every non-deleted track, so a free name does not query either.
+  The caller gets its own copy, so loading gates into it does not touch the index.
+  * */
+  public static CompletableFuture<RaceTrack> getTrackByName(String name) {
+    RaceTrack track = RaceGateIndex.getTrackByName(MySQLHelper.sanitizeKeyboard(name));
+    if (track == null) return completedFuture(null);
+    return completedFuture(new RaceTrack(track));
+  }
+
+  /*
+  Answered by RaceGateIndex, which holds every non-deleted track, so this never waits on the DB.
+  The caller gets its own copy, so loading gates into it does not touch the index.
+  * */
+  public static CompletableFuture<RaceTrack> getTrack(String dimension, BlockPos pos) {
+    RaceTrack track = RaceGateIndex.getTrack(dimension, pos);
+    if (track == null) return completedFuture(null);
+    return completedFuture(new RaceTrack(track));
+  }
+
+  public static boolean isTrackStart(String dimension, BlockPos pos) {
+    return RaceGateIndex.getTrack(dimension, pos) != null;
   }
 
   // utf-8 characters in track name are not supported.
-  public static CompletableFuture<String> insertTrack(String ownerUserId, String name, String dimension, BlockPos startingPos) throws Exception {
+  public static CompletableFuture<CompactId> insertTrack(CompactId ownerUserId, String name, String dimension, BlockPos startingPos) throws Exception {
     RaceTrack existingTrack = await(getTrack(dimension, startingPos));
     if (existingTrack != null) {
       throw new Exception("A track already exists at this position. " + startingPos);
     }
 
-    String fownerUserId = ownerUserId.replaceAll("-", "").toUpperCase();
-    // Only common letters may be accepted for international compatibility.
-    // No spaces
-    String raceTrackId = MySQLHelper.newId();
-    String fname = MySQLHelper.sanitizeKeyboard(name);
-    String sql = "INSERT INTO RaceTrack (\n" +
-    "raceTrackId,\n" +
-    "ownerUserId,\n" +
-    "name,\n" +
-    "dimension,\n" +
-    "startPosX,\n" +
-    "startPosZ,\n" +
-    "startPosY\n" +
-    ") VALUES (\n" +
-    // raceTrackId
-    "UNHEX(?),\n" +
-    // ownerUserId
-    "UNHEX(?),\n" +
-    // name
-    "?,\n" +
-    // dimension
-    "?,\n" +
-    // startPosX
-    "?,\n" +
-    // startPosZ
-    "?,\n" +
-    // startPosY
-    "?\n" +
-    ");";
+    CompactId raceTrackId = MySQLHelper.newId();
     await(
-      MySQLHelper.prepareAndExecute(sql, (statement) -> {
-        statement.setString(1, raceTrackId);
-        statement.setString(2, fownerUserId);
-        statement.setString(3, fname);
-        statement.setString(4, dimension);
-        statement.setInt(5, startingPos.getX());
-        statement.setInt(6, startingPos.getZ());
-        statement.setInt(7, startingPos.getY());
-      })
+      MySQLHelper.prepareAndExecute(INSERT_SQL, bindInsert(raceTrackId, ownerUserId, name, dimension, startingPos))
     );
+    RaceGateIndex.putTrack(new RaceTrack(raceTrackId, ownerUserId, name, dimension, startingPos));
+    return completedFuture(raceTrackId);
+  }
+
+  /*
+  Stores a new track together with all of its gates in one transaction,
+  so a failure can never leave a track with missing gates.
+  * */
+  public static CompletableFuture<CompactId> insertTrack(CompactId ownerUserId, String name, String dimension, BlockPos startingPos, ArrayList<RaceGate> gates) throws Exception {
+    RaceTrack existingTrack = await(getTrack(dimension, startingPos));
+    if (existingTrack != null) {
+      throw new Exception("A track already exists at this position. " + startingPos);
+    }
+
+    CompactId raceTrackId = MySQLHelper.newId();
+    Preparer track = bindInsert(raceTrackId, ownerUserId, name, dimension, startingPos);
+    await(MySQLHelper.withTransaction((connection) -> {
+      MySQLHelper.execute(connection, INSERT_SQL, track);
+      RaceGate.insertGates(connection, raceTrackId, gates);
+      return null;
+    }));
+
+    // Only index what was committed:
+    RaceGateIndex.putTrack(new RaceTrack(raceTrackId, ownerUserId, name, dimension, startingPos));
+    for (RaceGate gate : gates) {
+      RaceGateIndex.putGate(raceTrackId, gate.raceGateId, gate.origin, gate.farthest);
+    }
     return completedFuture(raceTrackId);
   }
 
+  private static Preparer bindInsert(CompactId raceTrackId, CompactId ownerUserId, String name, String dimension, BlockPos startingPos) {
+    // Only common letters may be accepted for international compatibility.
+    // No spaces
+    String fname = MySQLHelper.sanitizeKeyboard(name);
+    return (statement) -> {
+      MySQLHelper.setId(statement, 1, raceTrackId);
+      MySQLHelper.setId(statement, 2, ownerUserId);
+      statement.setString(3, fname);
+      statement.setString(4, dimension);
+      statement.setInt(5, startingPos.getX());
+      statement.setInt(6, startingPos.getZ());
+      statement.setInt(7, startingPos.getY());
+    };
+  }
+
   public static CompletableFuture<Void> softDelete(String dimension, BlockPos pos) throws Exception {
-    String sql = "UPDATE RaceTrack SET " +
-    "deleted = TRUE, " +
-    "dateUpdated = CURRENT_TIMESTAMP " +
-    "WHERE startPosX = ? " +
-    "AND startPosZ = ? " +
-    "AND startPosY = ? " +
-    "AND dimension = ? " +
-    "AND !`deleted`;";
     await(
-      MySQLHelper.prepareAndExecute(sql, (statement) -> {
-        statement.setInt(1, pos.getX());
-        statement.setInt(2, pos.getZ());
-        statement.setInt(3, pos.getY());
-        statement.setString(4, dimension);
-      })
+      MySQLHelper.prepareAndExecute(SOFT_DELETE_SQL, bindSoftDelete(dimension, pos))
     );
+    CompactId raceTrackId = RaceGateIndex.removeTrack(dimension, pos);
+    if (raceTrackId != null) {
+      RaceLeaderboard.remove(raceTrackId);
+    }
     return completedFuture(null);
   }
 
+  /*
+  Soft deletes the track and all of its gates in one transaction.
+  * */
+  public static CompletableFuture<Void> softDelete(RaceTrack track) throws Exception {
+    BlockPos pos = new BlockPos(track.startPosX, track.startPosY, track.startPosZ);
+    Preparer trackSetter = bindSoftDelete(track.dimension, pos);
+    await(MySQLHelper.withTransaction((connection) -> {
+      MySQLHelper.execute(connection, SOFT_DELETE_SQL, trackSetter);
+      RaceGate.softDelete(connection, track.raceTrackId);
+      return null;
+    }));
+
+    // Only forget what was committed:
+    RaceGateIndex.removeTrack(track.dimension, pos);
+    RaceGateIndex.removeGates(track.raceTrackId);
+    RaceLeaderboard.remove(track.raceTrackId);
+    return completedFuture(null);
+  }
+
+  private static Preparer bindSoftDelete(String dimension, BlockPos pos) {
+    return (statement) -> {
+      statement.setInt(1, pos.getX());
+      statement.setInt(2, pos.getZ());
+      statement.setInt(3, pos.getY());
+      statement.setString(4, dimension);
+    };
+  }
+
   public int hashCode() {
     return this.raceTrackId.hashCode();
   }